@@ -12,6 +12,16 @@ locals {
     taskKeyPrefix      = "userinfosync"
     mappingJson        = jsonencode({ deptId = "response.employees.departmentCode" })
     invalidateOnKeys   = "deptId"
+    incrementalEnabled = false
+    shards             = 1
+    shardParallelism   = 2
+    jdbcBatchSize      = 100
+
+    invalidationSessionsPerSecond = 50
+    invalidationBatchSize         = 50
+    invalidationNotBeforeOnly     = false
+    onDemandEnabled               = true
+    dryRunEnabled                 = false
   }
 
   defaults = merge(
@@ -41,6 +51,16 @@ output "attributes" {
       "userinfosync.taskKeyPrefix"       = tostring(local.output_userinfosync.taskKeyPrefix)
       "userinfosync.mappingJson"         = tostring(local.output_userinfosync.mappingJson)
       "userinfosync.invalidateOnKeys"    = tostring(local.output_userinfosync.invalidateOnKeys)
+      "userinfosync.incremental.enabled" = tostring(local.output_userinfosync.incrementalEnabled)
+      "userinfosync.shards"              = tostring(local.output_userinfosync.shards)
+      "userinfosync.shardParallelism"    = tostring(local.output_userinfosync.shardParallelism)
+      "userinfosync.jdbcBatchSize"       = tostring(local.output_userinfosync.jdbcBatchSize)
+
+      "userinfosync.invalidation.sessionsPerSecond" = tostring(local.output_userinfosync.invalidationSessionsPerSecond)
+      "userinfosync.invalidation.batchSize"         = tostring(local.output_userinfosync.invalidationBatchSize)
+      "userinfosync.invalidation.notBeforeOnly"     = tostring(local.output_userinfosync.invalidationNotBeforeOnly)
+      "userinfosync.onDemand.enabled"               = tostring(local.output_userinfosync.onDemandEnabled)
+      "userinfosync.dryRun.enabled"                 = tostring(local.output_userinfosync.dryRunEnabled)
     }
   )
 }
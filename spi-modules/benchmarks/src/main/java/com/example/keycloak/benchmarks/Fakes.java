@@ -0,0 +1,119 @@
+package com.example.keycloak.benchmarks;
+
+import org.keycloak.models.AuthenticatedClientSessionModel;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.ClientScopeModel;
+import org.keycloak.models.ClientSessionContext;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserSessionModel;
+
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * 벤치마크용 Keycloak model 인터페이스 in-memory fake.
+ *
+ * <p>model 인터페이스는 메서드가 많아서 {@link Proxy}로 필요한 메서드만 구현한다. 등록하지 않은 메서드는
+ * 반환 타입의 기본값(null/false/0)을 돌려준다. 메서드 이름만 보고 분기하므로 overload는 구분하지 않는다.
+ */
+public final class Fakes {
+  private Fakes() {}
+
+  public static UserModel user(Map<String, List<String>> attributes) {
+    return proxy(UserModel.class, Map.of(
+        "getId", args -> "bench-user",
+        "getAttributes", args -> attributes,
+        "getFirstAttribute", args -> {
+          List<String> values = attributes.get((String) args[0]);
+          return values == null || values.isEmpty() ? null : values.get(0);
+        },
+        "getAttributeStream", args -> attributes.getOrDefault((String) args[0], List.of()).stream(),
+        "setSingleAttribute", args -> attributes.put((String) args[0], List.of((String) args[1])),
+        "removeAttribute", args -> attributes.remove((String) args[0])
+    ));
+  }
+
+  public static UserSessionModel userSession(UserModel user) {
+    return proxy(UserSessionModel.class, Map.of("getUser", args -> user));
+  }
+
+  public static ClientModel client(String clientId, Map<String, String> attributes) {
+    return client(clientId, attributes, Map.of(), Map.of());
+  }
+
+  public static ClientModel client(
+      String clientId,
+      Map<String, String> attributes,
+      Map<String, ClientScopeModel> defaultScopes,
+      Map<String, ClientScopeModel> optionalScopes
+  ) {
+    return proxy(ClientModel.class, Map.of(
+        "getId", args -> clientId,
+        "getClientId", args -> clientId,
+        "getAttribute", args -> attributes.get((String) args[0]),
+        "getAttributes", args -> attributes,
+        "getClientScopes", args -> (Boolean) args[0] ? defaultScopes : optionalScopes
+    ));
+  }
+
+  public static ClientScopeModel clientScope(String name, Map<String, String> attributes) {
+    return proxy(ClientScopeModel.class, Map.of(
+        "getId", args -> name,
+        "getName", args -> name,
+        "getAttribute", args -> attributes.get((String) args[0]),
+        "getAttributes", args -> attributes
+    ));
+  }
+
+  public static ClientSessionContext clientSessionContext(ClientModel client) {
+    AuthenticatedClientSessionModel clientSession =
+        proxy(AuthenticatedClientSessionModel.class, Map.of("getClient", args -> client));
+    return proxy(ClientSessionContext.class, Map.of("getClientSession", args -> clientSession));
+  }
+
+  /**
+   * name → scope 순서를 유지하는 map. getClientScopes 반환값 용.
+   */
+  public static Map<String, ClientScopeModel> scopes(List<ClientScopeModel> scopes) {
+    Map<String, ClientScopeModel> byName = new LinkedHashMap<>();
+    scopes.forEach(s -> byName.put(s.getName(), s));
+    return byName;
+  }
+
+  @SuppressWarnings("unchecked")
+  public static <T> T proxy(Class<T> type, Map<String, Function<Object[], Object>> handlers) {
+    Map<String, Function<Object[], Object>> methods = new HashMap<>(handlers);
+    return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, (self, method, args) -> {
+      Function<Object[], Object> handler = methods.get(method.getName());
+      if (handler != null) {
+        return handler.apply(args == null ? new Object[0] : args);
+      }
+      switch (method.getName()) {
+        case "hashCode":
+          return System.identityHashCode(self);
+        case "equals":
+          return self == args[0];
+        case "toString":
+          return "Fake" + type.getSimpleName();
+        default:
+          return defaultValue(method.getReturnType());
+      }
+    });
+  }
+
+  private static Object defaultValue(Class<?> type) {
+    if (!type.isPrimitive() || type == void.class) return null;
+    if (type == boolean.class) return false;
+    if (type == char.class) return '\0';
+    if (type == long.class) return 0L;
+    if (type == float.class) return 0f;
+    if (type == double.class) return 0d;
+    if (type == byte.class) return (byte) 0;
+    if (type == short.class) return (short) 0;
+    return 0;
+  }
+}
@@ -0,0 +1,139 @@
+package com.example.keycloak.mappers;
+
+import com.example.keycloak.benchmarks.Fakes;
+import org.keycloak.models.ClientSessionContext;
+import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.models.UserSessionModel;
+import org.keycloak.representations.IDToken;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ValueTransformProtocolMapper} token 발급 경로.
+ *
+ * <ul>
+ *   <li>setClaim: mapping cache hit(미리 채움) / miss(cache 끔 → 매 호출 client attribute 파싱), 단일/다중 값</li>
+ *   <li>parseMapping: CSV / JSON, 1k / 100k entry</li>
+ * </ul>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ValueTransformMapperBenchmark {
+
+  private static final String SOURCE_ATTR = "dept_code";
+  private static final int CLIENT_MAPPING_ENTRIES = 1_000;
+
+  @State(Scope.Benchmark)
+  public static class SetClaimState {
+    @Param({"hit", "miss"})
+    public String cache;
+
+    final ValueTransformProtocolMapper mapper = new ValueTransformProtocolMapper();
+    ProtocolMapperModel singleModel;
+    ProtocolMapperModel multiModel;
+    UserSessionModel userSession;
+    ClientSessionContext ctx;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+      Map<String, String> clientAttrs = new HashMap<>();
+      clientAttrs.put("map." + SOURCE_ATTR, csvMapping(CLIENT_MAPPING_ENTRIES));
+      ctx = Fakes.clientSessionContext(Fakes.client("bench-client", clientAttrs));
+
+      Map<String, List<String>> userAttrs = new HashMap<>();
+      userAttrs.put(SOURCE_ATTR, List.of("K10", "K20", "K30", "K999999"));
+      userSession = Fakes.userSession(Fakes.user(userAttrs));
+
+      boolean cacheEnabled = "hit".equals(cache);
+      singleModel = model(cacheEnabled, false);
+      multiModel = model(cacheEnabled, true);
+
+      // hit 모드면 cache를 채워둔다 (multi 여부는 cache key에 안 들어가서 두 모델이 같은 entry를 쓴다)
+      mapper.setClaim(new IDToken(), singleModel, userSession, null, ctx);
+    }
+
+    private static ProtocolMapperModel model(boolean cacheEnabled, boolean multi) {
+      Map<String, String> config = new HashMap<>();
+      config.put("source.user.attribute", SOURCE_ATTR);
+      config.put("target.claim.name", "dept");
+      config.put("mapping.cache.enabled", String.valueOf(cacheEnabled));
+      config.put("source.user.attribute.multi", String.valueOf(multi));
+      ProtocolMapperModel model = new ProtocolMapperModel();
+      model.setName("bench-" + (multi ? "multi" : "single"));
+      model.setProtocolMapper(ValueTransformProtocolMapper.PROVIDER_ID);
+      model.setConfig(config);
+      return model;
+    }
+  }
+
+  @State(Scope.Benchmark)
+  public static class ParseState {
+    @Param({"csv", "json"})
+    public String format;
+
+    @Param({"1000", "100000"})
+    public int entries;
+
+    String raw;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+      raw = "csv".equals(format) ? csvMapping(entries) : jsonMapping(entries);
+    }
+  }
+
+  @Benchmark
+  public IDToken setClaimSingle(SetClaimState s) {
+    IDToken token = new IDToken();
+    s.mapper.setClaim(token, s.singleModel, s.userSession, null, s.ctx);
+    return token;
+  }
+
+  @Benchmark
+  public IDToken setClaimMulti(SetClaimState s) {
+    IDToken token = new IDToken();
+    s.mapper.setClaim(token, s.multiModel, s.userSession, null, s.ctx);
+    return token;
+  }
+
+  @Benchmark
+  public Map<String, String> parseMapping(ParseState s) {
+    return ValueTransformProtocolMapper.parseMapping(s.raw);
+  }
+
+  static String csvMapping(int entries) {
+    List<String> pairs = new ArrayList<>(entries);
+    for (int i = 0; i < entries; i++) {
+      pairs.add("K" + i + ":dept-" + i);
+    }
+    return String.join(",", pairs);
+  }
+
+  static String jsonMapping(int entries) {
+    StringBuilder sb = new StringBuilder("{");
+    for (int i = 0; i < entries; i++) {
+      if (i > 0) sb.append(',');
+      sb.append("\"K").append(i).append("\":\"dept-").append(i).append('"');
+    }
+    return sb.append('}').toString();
+  }
+}
@@ -0,0 +1,179 @@
+package com.example.keycloak.terms;
+
+import com.example.keycloak.benchmarks.Fakes;
+import com.example.keycloak.terms.TermsModels.Term;
+import com.example.keycloak.terms.TermsModels.TermsBundle;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.ClientScopeModel;
+import org.keycloak.models.UserModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * terms-required-action 로그인 경로: 스코프 병합({@link TermsConfigResolver#resolve}, 캐시 없음/scope만/전체)과
+ * 수락 여부 확인({@link TermsAcceptanceStore#isAccepted}).
+ *
+ * <p>client마다 default/optional 스코프를 반씩 붙이고, 스코프마다 약관 3개(필수 2, 선택 1)를 둔다. 수락 여부는
+ * legacy/compact 저장소 둘 다 본다. allRequired*는 이미 전부 수락한 유저의 로그인 판정을 약관별 조회와
+ * satisfied digest 비교로 나눠 잰다. markAccepted*는 수락 화면 제출 한 번(필수+선택 전부)을 약관별 호출과 batch
+ * 호출로 나눠 잰다.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TermsBenchmark {
+
+  private static final int TERMS_PER_SCOPE = 3;
+
+  @State(Scope.Benchmark)
+  public static class TermsState {
+    @Param({"2", "10"})
+    public int scopes;
+
+    @Param({"legacy", "compact"})
+    public String store;
+
+    final TermsConfigResolver resolver = new TermsConfigResolver();
+    final TermsConfigResolver cachedResolver =
+        new TermsConfigResolver(new TermsBundleCache(), new ScopeTermsCache());
+    // bundle은 매번 병합하고 scope 파싱만 캐시 (scope 구성이 자주 바뀌는 client의 경로)
+    final TermsConfigResolver scopeCachedResolver = new TermsConfigResolver(null, new ScopeTermsCache());
+    TermsAcceptanceStore acceptanceStore;
+    ClientModel client;
+    TermsBundle bundle;
+    Term term;
+    UserModel acceptedUser;
+    UserModel staleUser;
+    UserModel newUser;
+    UserModel writeUser;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+      List<ClientScopeModel> defaults = new ArrayList<>();
+      List<ClientScopeModel> optionals = new ArrayList<>();
+      for (int i = 0; i < scopes; i++) {
+        Map<String, String> attrs = new HashMap<>();
+        attrs.put("terms_priority", String.valueOf(i % 3));
+        attrs.put("terms_config", termsConfig(i));
+        ClientScopeModel scope = Fakes.clientScope("scope-" + i, attrs);
+        (i % 2 == 0 ? defaults : optionals).add(scope);
+      }
+      client = Fakes.client("bench-client", Map.of(), Fakes.scopes(defaults), Fakes.scopes(optionals));
+
+      bundle = cachedResolver.resolve(client);
+      term = bundle.terms().get(0);
+
+      acceptanceStore = TermsAcceptanceStore.MODE_COMPACT.equals(store)
+          ? new CompactTermsAcceptanceStore()
+          : new LegacyTermsAcceptanceStore();
+
+      // 다른 client 수락 기록도 같이 쌓여 있는 유저 (compact는 문서 크기, legacy는 attribute 수가 늘어남)
+      acceptedUser = userWithOtherClients(bundle, 20);
+      for (Term t : bundle.terms()) {
+        acceptanceStore.markAccepted(acceptedUser, client, t);
+      }
+      acceptanceStore.recordSatisfied(acceptedUser, client, bundle.requiredDigest());
+      staleUser = userWithOtherClients(bundle, 20);
+      acceptanceStore.markAccepted(staleUser, client, new Term(term.key(), term.title(), "0", term.url(), true));
+      newUser = Fakes.user(new HashMap<>());
+      writeUser = userWithOtherClients(bundle, 20);
+    }
+
+    private UserModel userWithOtherClients(TermsBundle bundle, int clients) {
+      UserModel user = Fakes.user(new HashMap<>());
+      for (int c = 0; c < clients; c++) {
+        ClientModel other = Fakes.client("other-client-" + c, Map.of());
+        for (Term t : bundle.terms()) {
+          acceptanceStore.markAccepted(user, other, t);
+        }
+      }
+      return user;
+    }
+
+    private static String termsConfig(int scope) {
+      StringBuilder sb = new StringBuilder("{\"terms\":[");
+      for (int t = 0; t < TERMS_PER_SCOPE; t++) {
+        if (t > 0) sb.append(',');
+        sb.append("{\"key\":\"s").append(scope).append("-t").append(t).append('"')
+            .append(",\"title\":\"Term ").append(scope).append('-').append(t).append('"')
+            .append(",\"required\":").append(t < 2)
+            .append(",\"version\":\"2025-0").append(t + 1).append('"')
+            .append(",\"url\":\"https://terms.example.com/s").append(scope).append("/t").append(t).append("\"}");
+      }
+      return sb.append("]}").toString();
+    }
+  }
+
+  @Benchmark
+  public TermsBundle resolve(TermsState s) {
+    return s.resolver.resolve(s.client);
+  }
+
+  @Benchmark
+  public TermsBundle resolveScopeCached(TermsState s) {
+    return s.scopeCachedResolver.resolve(s.client);
+  }
+
+  @Benchmark
+  public TermsBundle resolveCached(TermsState s) {
+    return s.cachedResolver.resolve(s.client);
+  }
+
+  @Benchmark
+  public boolean isAcceptedCurrent(TermsState s) {
+    return s.acceptanceStore.isAccepted(s.acceptedUser, s.client, s.term);
+  }
+
+  @Benchmark
+  public boolean isAcceptedStale(TermsState s) {
+    return s.acceptanceStore.isAccepted(s.staleUser, s.client, s.term);
+  }
+
+  @Benchmark
+  public boolean isAcceptedMissing(TermsState s) {
+    return s.acceptanceStore.isAccepted(s.newUser, s.client, s.term);
+  }
+
+  @Benchmark
+  public boolean allRequiredPerTerm(TermsState s) {
+    for (Term t : s.bundle.terms()) {
+      if (t.required() && !s.acceptanceStore.isAccepted(s.acceptedUser, s.client, t)) return false;
+    }
+    return true;
+  }
+
+  @Benchmark
+  public boolean allRequiredDigest(TermsState s) {
+    return s.bundle.requiredDigest().equals(s.acceptanceStore.satisfiedDigest(s.acceptedUser, s.client));
+  }
+
+  @Benchmark
+  public void markAcceptedEach(TermsState s) {
+    for (Term t : s.bundle.terms()) {
+      s.acceptanceStore.markAccepted(s.writeUser, s.client, t);
+    }
+  }
+
+  @Benchmark
+  public void markAcceptedBatch(TermsState s) {
+    s.acceptanceStore.markAccepted(s.writeUser, s.client, s.bundle.terms());
+  }
+}
@@ -0,0 +1,89 @@
+package com.example.keycloak.userinfosync;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * userinfo-sync의 Knox 응답 추출 경로. 예전 UserInfoSyncRunner.extractString은
+ * {@link KnoxFieldExtractor}로 대체됐으므로 그걸 측정한다.
+ *
+ * <p>응답은 실제 Knox basic 응답과 비슷한 크기로 만들고, 매핑 key 수(1/5)와 입력 형태(String/InputStream)를
+ * 바꿔본다.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KnoxFieldExtractorBenchmark {
+
+  @State(Scope.Benchmark)
+  public static class ExtractState {
+    @Param({"1", "5"})
+    public int keys;
+
+    KnoxFieldExtractor extractor;
+    String json;
+    byte[] bytes;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+      Map<String, String> mapping = new LinkedHashMap<>();
+      mapping.put("deptId", "response.employees.departmentCode");
+      if (keys > 1) {
+        mapping.put("deptName", "response.employees.departmentName");
+        mapping.put("title", "response.employees.titleName");
+        mapping.put("companyCode", "response.employees.companyCode");
+        mapping.put("email", "response.employees.emailAddress");
+      }
+      extractor = new KnoxFieldExtractor(mapping);
+      json = knoxResponse();
+      bytes = json.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String knoxResponse() {
+      StringBuilder sb = new StringBuilder("{\"result\":\"SUCCESS\",\"response\":{\"employees\":{")
+          .append("\"userId\":\"bench.user\",\"employeeNumber\":\"12345678\"")
+          .append(",\"departmentCode\":\"D1234\",\"departmentName\":\"Platform Engineering\"")
+          .append(",\"titleName\":\"Engineer\",\"companyCode\":\"C10\"")
+          .append(",\"emailAddress\":\"bench.user@example.com\"");
+      // 매핑에 없는 필드 (응답 대부분은 건너뛰는 값)
+      for (int i = 0; i < 40; i++) {
+        sb.append(",\"extra").append(i).append("\":\"value-").append(i).append('"');
+      }
+      sb.append(",\"history\":[");
+      for (int i = 0; i < 10; i++) {
+        if (i > 0) sb.append(',');
+        sb.append("{\"departmentCode\":\"OLD").append(i).append("\",\"from\":\"20").append(10 + i).append("-01-01\"}");
+      }
+      return sb.append("]}}}").toString();
+    }
+  }
+
+  @Benchmark
+  public Map<String, String> extractString(ExtractState s) throws IOException {
+    return s.extractor.extract(s.json);
+  }
+
+  @Benchmark
+  public Map<String, String> extractStream(ExtractState s) throws IOException {
+    return s.extractor.extract(new ByteArrayInputStream(s.bytes));
+  }
+}
@@ -520,7 +520,8 @@ public class ValueTransformProtocolMapper extends AbstractOIDCProtocolMapper
     }
   }
 
-  private static Map<String, String> parseMapping(String raw) {
+  // benchmarks 모듈에서 직접 측정하도록 package-private
+  static Map<String, String> parseMapping(String raw) {
     String s = raw == null ? "" : raw.trim();
     if (s.isEmpty()) return Map.of();
 
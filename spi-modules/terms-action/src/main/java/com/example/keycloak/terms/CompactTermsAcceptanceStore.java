@@ -0,0 +1,207 @@
+package com.example.keycloak.terms;
+
+import com.example.keycloak.terms.TermsModels.Term;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.jboss.logging.Logger;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+
+/**
+ * 수락 기록을 user attribute {@code terms_acceptance} 하나에 JSON으로 모은다. client/term이 늘어도 유저당
+ * USER_ATTRIBUTE row는 하나다.
+ *
+ * <pre>{"v":1,"clients":{"&lt;clientId&gt;":{"&lt;termKey&gt;":"&lt;version&gt;|&lt;acceptedAt&gt;","__lastAcceptedAt":"...","__satisfied":"&lt;requiredDigest&gt;"}}}</pre>
+ *
+ * <p>provider(요청) 단위 인스턴스라, 같은 유저의 attribute 원문이 그대로면 파싱한 문서를 재사용한다. 그래서 term
+ * 판정은 map lookup 두 번이다.
+ *
+ * <p>online migration: 문서에 없는 term은 legacy key({@code terms.accepted.<clientId>.<termKey>})를 보고, 있으면
+ * 그 client의 legacy key를 모두 문서로 옮겨 한 번에 쓰고 legacy attribute를 지운다. legacy key 이름만으로는
+ * clientId와 termKey 경계를 알 수 없어서(둘 다 '.'을 포함할 수 있음), 나머지 부분의 앞쪽이 realm의 다른 clientId로도
+ * 읽히는 key는 건드리지 않고 그 term이 조회될 때 따로 옮긴다.
+ */
+public class CompactTermsAcceptanceStore implements TermsAcceptanceStore {
+
+  static final String ATTRIBUTE = "terms_acceptance";
+
+  private static final Logger LOG = Logger.getLogger(CompactTermsAcceptanceStore.class);
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  // 요청 안에서만 쓰는 파싱 캐시
+  private String cachedUserId;
+  private String cachedRaw;
+  private Document cachedDoc;
+
+  @Override
+  public boolean isAccepted(UserModel user, ClientModel client, Term term) {
+    String currentVersion = term.version();
+    if (currentVersion == null || currentVersion.isBlank()) return false;
+
+    Document doc = read(user);
+    Map<String, String> accepted = doc.clients.get(client.getClientId());
+    String raw = accepted == null ? null : accepted.get(term.key());
+    if (raw == null) {
+      raw = migrateLegacy(user, client, term, doc);
+    }
+    if (raw == null || raw.isBlank()) return false;
+
+    return Objects.equals(currentVersion, LegacyTermsAcceptanceStore.storedVersion(raw));
+  }
+
+  @Override
+  public void markAccepted(UserModel user, ClientModel client, List<Term> terms) {
+    TermsAcceptanceStore.requireVersions(terms);
+    if (terms.isEmpty()) return;
+
+    String now = Instant.now().toString();
+    Document doc = read(user);
+    Map<String, String> accepted = doc.clients.computeIfAbsent(client.getClientId(), k -> new TreeMap<>());
+    for (Term term : terms) {
+      accepted.put(term.key(), term.version() + "|" + now);
+    }
+    accepted.put(LegacyTermsAcceptanceStore.LAST_ACCEPTED_AT, now);
+    write(user, doc);
+
+    // 새 기록이 생겼으니 같은 term의 legacy key는 필요 없다
+    for (Term term : terms) {
+      removeLegacy(user, LegacyTermsAcceptanceStore.key(client, term));
+    }
+  }
+
+  @Override
+  public String satisfiedDigest(UserModel user, ClientModel client) {
+    Map<String, String> accepted = read(user).clients.get(client.getClientId());
+    return accepted == null ? null : accepted.get(SATISFIED_KEY);
+  }
+
+  @Override
+  public void recordSatisfied(UserModel user, ClientModel client, String requiredDigest) {
+    if (requiredDigest == null) return;
+    Document doc = read(user);
+    Map<String, String> accepted = doc.clients.computeIfAbsent(client.getClientId(), k -> new TreeMap<>());
+    if (requiredDigest.equals(accepted.put(SATISFIED_KEY, requiredDigest))) return;
+    write(user, doc);
+    TermsAcceptanceStore.removeSatisfiedAttribute(user, client);
+  }
+
+  /**
+   * legacy key에 기록이 있으면 같은 client의 legacy 기록을 모두 문서로 옮기고(attribute 쓰기 1번) 조회한 term의
+   * 값을 돌려준다. 저장이 실패해도(read-only federation 등) 판정은 legacy 값으로 한다.
+   */
+  private String migrateLegacy(UserModel user, ClientModel client, Term term, Document doc) {
+    String legacyKey = LegacyTermsAcceptanceStore.key(client, term);
+    String raw = user.getFirstAttribute(legacyKey);
+    if (raw == null || raw.isBlank()) return null;
+
+    String prefix = LegacyTermsAcceptanceStore.KEY_PREFIX + client.getClientId() + ".";
+    String lastKey = prefix + LegacyTermsAcceptanceStore.LAST_ACCEPTED_AT;
+    // legacy key → termKey
+    Map<String, String> moved = new TreeMap<>();
+    moved.put(legacyKey, term.key());
+    for (String name : user.getAttributes().keySet()) {
+      if (!name.startsWith(prefix) || name.equals(lastKey) || moved.containsKey(name)) continue;
+      String termKey = name.substring(prefix.length());
+      if (!termKey.isEmpty() && !readsAsOtherClient(client, termKey)) {
+        moved.put(name, termKey);
+      }
+    }
+
+    try {
+      Map<String, String> accepted = doc.clients.computeIfAbsent(client.getClientId(), k -> new TreeMap<>());
+      for (Map.Entry<String, String> e : moved.entrySet()) {
+        String value = e.getKey().equals(legacyKey) ? raw : user.getFirstAttribute(e.getKey());
+        // 문서에 이미 있으면 문서가 최신이다 (markAccepted가 legacy를 못 지운 경우)
+        if (value != null && !value.isBlank()) {
+          accepted.putIfAbsent(e.getValue(), value);
+        }
+      }
+
+      String lastAcceptedAt = user.getFirstAttribute(lastKey);
+      if (lastAcceptedAt != null) {
+        accepted.putIfAbsent(LegacyTermsAcceptanceStore.LAST_ACCEPTED_AT, lastAcceptedAt);
+      }
+
+      write(user, doc);
+      moved.keySet().forEach(k -> removeLegacy(user, k));
+      if (lastAcceptedAt != null) {
+        removeLegacy(user, lastKey);
+      }
+      LOG.debugf("TERMS migrated legacy acceptance user=%s client=%s keys=%s",
+          user.getId(), client.getClientId(), moved.values());
+    } catch (RuntimeException e) {
+      LOG.debugf(e, "TERMS legacy acceptance not migrated user=%s key=%s", user.getId(), legacyKey);
+      // 문서에 반영하지 못했으니 캐시를 버려서 다음 조회가 attribute를 다시 읽게 한다
+      cachedDoc = null;
+    }
+    return raw;
+  }
+
+  // "app" client의 나머지 "web.tos"는 "app.web" client의 "tos"일 수도 있다
+  private static boolean readsAsOtherClient(ClientModel client, String termKey) {
+    RealmModel realm = client.getRealm();
+    for (int dot = termKey.indexOf('.'); dot > 0; dot = termKey.indexOf('.', dot + 1)) {
+      if (realm.getClientByClientId(client.getClientId() + "." + termKey.substring(0, dot)) != null) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static void removeLegacy(UserModel user, String key) {
+    if (user.getFirstAttribute(key) != null) {
+      user.removeAttribute(key);
+    }
+  }
+
+  private Document read(UserModel user) {
+    String raw = user.getFirstAttribute(ATTRIBUTE);
+    if (cachedDoc != null && Objects.equals(cachedUserId, user.getId()) && Objects.equals(cachedRaw, raw)) {
+      return cachedDoc;
+    }
+
+    Document doc = null;
+    if (raw != null && !raw.isBlank()) {
+      try {
+        doc = MAPPER.readValue(raw, Document.class);
+      } catch (Exception e) {
+        // 깨진 문서는 빈 문서로 보고 다음 수락 때 덮어쓴다 (legacy key가 남아 있으면 다시 옮겨진다)
+        LOG.warnf("Invalid %s attribute for user=%s: %s", ATTRIBUTE, user.getId(), e.getMessage());
+      }
+    }
+    if (doc == null || doc.clients == null) {
+      doc = new Document();
+    }
+
+    cachedUserId = user.getId();
+    cachedRaw = raw;
+    cachedDoc = doc;
+    return doc;
+  }
+
+  private void write(UserModel user, Document doc) {
+    String raw;
+    try {
+      raw = MAPPER.writeValueAsString(doc);
+    } catch (Exception e) {
+      throw new IllegalStateException("failed to write " + ATTRIBUTE, e);
+    }
+    user.setSingleAttribute(ATTRIBUTE, raw);
+    cachedUserId = user.getId();
+    cachedRaw = raw;
+    cachedDoc = doc;
+  }
+
+  @JsonIgnoreProperties(ignoreUnknown = true)
+  public static final class Document {
+    public int v = 1;
+    public Map<String, Map<String, String>> clients = new TreeMap<>();
+  }
+}
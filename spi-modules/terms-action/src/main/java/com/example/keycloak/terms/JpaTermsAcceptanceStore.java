@@ -0,0 +1,186 @@
+package com.example.keycloak.terms;
+
+import com.example.keycloak.terms.TermsModels.Term;
+import com.example.keycloak.terms.jpa.TermsAcceptanceEntity;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.LockModeType;
+import org.jboss.logging.Logger;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.jpa.entities.UserEntity;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * 수락 기록을 전용 테이블 TERMS_ACCEPTANCE({@link TermsAcceptanceEntity})에 둔다. USER_ATTRIBUTE를 쓰지 않아서
+ * "term X의 version Y를 수락하지 않은 유저" 같은 조회를 인덱스로 할 수 있다 ({@code TermsAcceptanceAdminResource}).
+ *
+ * <p>provider(요청) 단위 인스턴스라, (user, client)의 row는 처음 조회할 때 한 번에 읽어서 재사용한다. satisfied
+ * digest도 같은 (user, client)의 row(TERM_KEY {@value TermsAcceptanceStore#SATISFIED_KEY}, VERSION = digest)라 같이
+ * 읽힌다.
+ *
+ * <p>online migration: row가 없는 term은 legacy key({@code terms.accepted.<clientId>.<termKey>})를 보고, 있으면
+ * row로 옮긴 뒤 legacy attribute를 지운다. compact 문서({@code terms_acceptance})는 읽지 않는다.
+ *
+ * <p>새 row를 넣기 전에는 USER_ENTITY row를 잠그고 (user, client) row를 다시 읽는다. 같은 유저의 첫 수락/이전이
+ * 두 요청에서 동시에 와도 뒤 요청은 앞 요청 commit 뒤의 row를 UPDATE 하므로 UK_TERMS_ACCEPTANCE_USER_TERM에 걸리지
+ * 않는다 (INSERT 충돌은 commit 때 flush에서 나서 잡아도 TX가 이미 rollback-only다).
+ */
+public class JpaTermsAcceptanceStore implements TermsAcceptanceStore {
+
+  private static final Logger LOG = Logger.getLogger(JpaTermsAcceptanceStore.class);
+
+  private final KeycloakSession session;
+
+  // 요청 안에서만 쓰는 (user, client) row 캐시. key는 termKey
+  private String cachedUserId;
+  private String cachedClientId;
+  private Map<String, TermsAcceptanceEntity> cachedRows;
+
+  public JpaTermsAcceptanceStore(KeycloakSession session) {
+    this.session = session;
+  }
+
+  @Override
+  public boolean isAccepted(UserModel user, ClientModel client, Term term) {
+    String currentVersion = term.version();
+    if (currentVersion == null || currentVersion.isBlank()) return false;
+
+    TermsAcceptanceEntity row = rows(user, client).get(term.key());
+    String version = row != null ? row.getVersion() : migrateLegacy(user, client, term);
+    return Objects.equals(currentVersion, version);
+  }
+
+  @Override
+  public void markAccepted(UserModel user, ClientModel client, List<Term> terms) {
+    TermsAcceptanceStore.requireVersions(terms);
+
+    long now = Instant.now().toEpochMilli();
+    for (Term term : terms) {
+      // managed entity 변경/persist라 SQL은 commit 때 한 번에 나간다
+      upsert(user, client, term.key(), term.version(), now);
+
+      // 새 기록이 생겼으니 같은 term의 legacy key는 필요 없다
+      String legacyKey = LegacyTermsAcceptanceStore.key(client, term);
+      if (user.getFirstAttribute(legacyKey) != null) {
+        user.removeAttribute(legacyKey);
+      }
+    }
+  }
+
+  @Override
+  public String satisfiedDigest(UserModel user, ClientModel client) {
+    TermsAcceptanceEntity row = rows(user, client).get(SATISFIED_KEY);
+    return row == null ? null : row.getVersion();
+  }
+
+  @Override
+  public void recordSatisfied(UserModel user, ClientModel client, String requiredDigest) {
+    if (requiredDigest == null || requiredDigest.equals(satisfiedDigest(user, client))) return;
+    upsert(user, client, SATISFIED_KEY, requiredDigest, Instant.now().toEpochMilli());
+    TermsAcceptanceStore.removeSatisfiedAttribute(user, client);
+  }
+
+  /**
+   * legacy key에 기록이 있으면 row로 옮기고 그 version을 돌려준다. 저장이 실패해도 판정은 legacy 값으로 한다.
+   */
+  private String migrateLegacy(UserModel user, ClientModel client, Term term) {
+    String legacyKey = LegacyTermsAcceptanceStore.key(client, term);
+    String raw = user.getFirstAttribute(legacyKey);
+    if (raw == null || raw.isBlank()) return null;
+
+    String version = LegacyTermsAcceptanceStore.storedVersion(raw);
+    try {
+      upsert(user, client, term.key(), version, legacyAcceptedAt(raw));
+      user.removeAttribute(legacyKey);
+      LOG.debugf("TERMS migrated legacy acceptance to table user=%s key=%s", user.getId(), legacyKey);
+    } catch (RuntimeException e) {
+      LOG.debugf(e, "TERMS legacy acceptance not migrated user=%s key=%s", user.getId(), legacyKey);
+      cachedRows = null;
+    }
+    return version;
+  }
+
+  // "version|timestamp"면 timestamp, 옛 형식("version")이면 지금
+  private static long legacyAcceptedAt(String raw) {
+    int sep = raw.indexOf('|');
+    if (sep >= 0) {
+      try {
+        return Instant.parse(raw.substring(sep + 1)).toEpochMilli();
+      } catch (RuntimeException ignore) {
+        // fall through
+      }
+    }
+    return Instant.now().toEpochMilli();
+  }
+
+  private void upsert(UserModel user, ClientModel client, String termKey, String version, long acceptedAt) {
+    Map<String, TermsAcceptanceEntity> rows = rows(user, client);
+    TermsAcceptanceEntity row = rows.get(termKey);
+    if (row == null) {
+      row = lockAndReload(user, client, rows).get(termKey);
+    }
+    if (row == null) {
+      row = new TermsAcceptanceEntity();
+      row.setId(KeycloakModelUtils.generateId());
+      row.setRealmId(session.getContext().getRealm().getId());
+      row.setUserId(user.getId());
+      row.setClientId(client.getClientId());
+      row.setTermKey(termKey);
+      em().persist(row);
+      rows.put(termKey, row);
+    }
+    // managed entity라 commit 때 UPDATE 된다
+    row.setVersion(version);
+    row.setAcceptedAt(acceptedAt);
+  }
+
+  /**
+   * 유저 row를 잠근 뒤 (user, client) row를 잠금 읽기로 다시 읽어 캐시에 합친다. 잠금 읽기라 REPEATABLE READ에서도
+   * 다른 TX가 방금 commit한 row가 보인다. 로컬 USER_ENTITY가 없는 유저(federation, import 안 함)는 잠글 row가 없다.
+   */
+  private Map<String, TermsAcceptanceEntity> lockAndReload(
+      UserModel user,
+      ClientModel client,
+      Map<String, TermsAcceptanceEntity> rows
+  ) {
+    em().find(UserEntity.class, user.getId(), LockModeType.PESSIMISTIC_WRITE);
+    em().createNamedQuery("termsAcceptance.byUserAndClient", TermsAcceptanceEntity.class)
+        .setParameter("userId", user.getId())
+        .setParameter("clientId", client.getClientId())
+        .setLockMode(LockModeType.PESSIMISTIC_WRITE)
+        .getResultStream()
+        .forEach(row -> rows.putIfAbsent(row.getTermKey(), row));
+    return rows;
+  }
+
+  private Map<String, TermsAcceptanceEntity> rows(UserModel user, ClientModel client) {
+    if (cachedRows != null
+        && Objects.equals(cachedUserId, user.getId())
+        && Objects.equals(cachedClientId, client.getClientId())) {
+      return cachedRows;
+    }
+    Map<String, TermsAcceptanceEntity> rows = new HashMap<>();
+    em().createNamedQuery("termsAcceptance.byUserAndClient", TermsAcceptanceEntity.class)
+        .setParameter("userId", user.getId())
+        .setParameter("clientId", client.getClientId())
+        .getResultStream()
+        .forEach(row -> rows.put(row.getTermKey(), row));
+
+    cachedUserId = user.getId();
+    cachedClientId = client.getClientId();
+    cachedRows = rows;
+    return rows;
+  }
+
+  private EntityManager em() {
+    return session.getProvider(JpaConnectionProvider.class).getEntityManager();
+  }
+}
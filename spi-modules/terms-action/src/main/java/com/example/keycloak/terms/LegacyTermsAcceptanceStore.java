@@ -0,0 +1,67 @@
+package com.example.keycloak.terms;
+
+import com.example.keycloak.terms.TermsModels.Term;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.UserModel;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Objects;
+
+public class LegacyTermsAcceptanceStore implements TermsAcceptanceStore {
+
+  static final String KEY_PREFIX = "terms.accepted.";
+  static final String LAST_ACCEPTED_AT = "__lastAcceptedAt";
+  static final String SATISFIED_PREFIX = "terms.satisfied.";
+
+  // key format: terms.accepted.<clientId>.<termKey>
+  @Override
+  public boolean isAccepted(UserModel user, ClientModel client, Term term) {
+    String currentVersion = term.version();
+    if (currentVersion == null || currentVersion.isBlank()) return false;
+
+    String raw = user.getFirstAttribute(key(client, term));
+    if (raw == null || raw.isBlank()) return false;
+
+    return Objects.equals(currentVersion, storedVersion(raw));
+  }
+
+  @Override
+  public void markAccepted(UserModel user, ClientModel client, List<Term> terms) {
+    TermsAcceptanceStore.requireVersions(terms);
+    if (terms.isEmpty()) return;
+
+    String now = Instant.now().toString();
+    for (Term term : terms) {
+      user.setSingleAttribute(key(client, term), term.version() + "|" + now);
+    }
+
+    // optional convenience: per-client last accepted time (batch당 한 번)
+    user.setSingleAttribute(KEY_PREFIX + client.getClientId() + "." + LAST_ACCEPTED_AT, now);
+  }
+
+  // key format: terms.satisfied.<clientId>
+  @Override
+  public String satisfiedDigest(UserModel user, ClientModel client) {
+    return user.getFirstAttribute(SATISFIED_PREFIX + client.getClientId());
+  }
+
+  @Override
+  public void recordSatisfied(UserModel user, ClientModel client, String requiredDigest) {
+    if (requiredDigest == null) return;
+    String key = SATISFIED_PREFIX + client.getClientId();
+    if (!requiredDigest.equals(user.getFirstAttribute(key))) {
+      user.setSingleAttribute(key, requiredDigest);
+    }
+  }
+
+  static String key(ClientModel client, Term term) {
+    return KEY_PREFIX + client.getClientId() + "." + term.key();
+  }
+
+  // raw can be "version" (legacy) or "version|timestamp" (new)
+  static String storedVersion(String raw) {
+    int sep = raw.indexOf('|');
+    return sep >= 0 ? raw.substring(0, sep) : raw;
+  }
+}
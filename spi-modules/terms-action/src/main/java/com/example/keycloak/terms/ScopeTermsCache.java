@@ -0,0 +1,56 @@
+package com.example.keycloak.terms;
+
+import com.example.keycloak.terms.TermsModels.Term;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * scope별로 파싱/검증이 끝난 terms_config를 노드 메모리에 둔다. 같은 공용 scope(예: privacy-policy)가 수백 개
+ * client에 붙어 있어도 JSON 파싱은 scope 당 한 번이고, client는 priority 병합만 한다.
+ *
+ * <p>key는 scope id, 값은 파싱 당시의 terms_config 원문과 불변 {@link Term} 목록이다. 원문이 달라지면(다른
+ * 노드에서 수정된 경우 포함) miss로 처리한다. 원문 비교는 hash가 같을 때만 내용 비교로 간다. 파싱/검증에
+ * 실패한 scope는 넣지 않는다.
+ */
+final class ScopeTermsCache {
+  private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+  /**
+   * 원문이 다르거나 없으면 null.
+   */
+  List<Term> get(String scopeId, String rawConfig) {
+    Entry entry = entries.get(scopeId);
+    if (entry == null) return null;
+    if (entry.rawHash != rawConfig.hashCode() || !entry.rawConfig.equals(rawConfig)) {
+      entries.remove(scopeId, entry);
+      return null;
+    }
+    return entry.terms;
+  }
+
+  void put(String scopeId, String rawConfig, List<Term> terms) {
+    entries.put(scopeId, new Entry(rawConfig, List.copyOf(terms)));
+  }
+
+  void invalidate(String scopeId) {
+    entries.remove(scopeId);
+  }
+
+  void clear() {
+    entries.clear();
+  }
+
+  private static final class Entry {
+    final String rawConfig;
+    final int rawHash;
+    final List<Term> terms;
+
+    Entry(String rawConfig, List<Term> terms) {
+      this.rawConfig = rawConfig;
+      this.rawHash = rawConfig.hashCode();
+      this.terms = terms;
+    }
+  }
+}
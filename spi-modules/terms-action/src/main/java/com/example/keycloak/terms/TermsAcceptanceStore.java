@@ -4,42 +4,75 @@ import com.example.keycloak.terms.TermsModels.Term;
 import org.keycloak.models.ClientModel;
 import org.keycloak.models.UserModel;
 
-import java.time.Instant;
-import java.util.Objects;
+import java.util.List;
 
-public class TermsAcceptanceStore {
+/**
+ * 약관 수락 기록 저장소. 구현은 factory 설정 {@code acceptanceStore}로 고른다.
+ *
+ * <ul>
+ *   <li>{@code legacy}(기본): client/term마다 user attribute 하나 ({@link LegacyTermsAcceptanceStore})</li>
+ *   <li>{@code compact}: user attribute 하나에 JSON으로 모음, legacy key는 읽을 때 옮김
+ *       ({@link CompactTermsAcceptanceStore})</li>
+ *   <li>{@code jpa}: 전용 테이블 TERMS_ACCEPTANCE, legacy key는 읽을 때 옮김. 재동의 대상 조회 API는 이 모드에서만
+ *       의미가 있다 ({@link JpaTermsAcceptanceStore})</li>
+ * </ul>
+ */
+public interface TermsAcceptanceStore {
 
-  // key format: terms.accepted.<clientId>.<termKey>
-  public boolean isAccepted(UserModel user, ClientModel client, Term term) {
-    String currentVersion = term.version();
-    if (currentVersion == null || currentVersion.isBlank()) return false;
+  String MODE_LEGACY = "legacy";
+  String MODE_COMPACT = "compact";
+  String MODE_JPA = "jpa";
 
-    String raw = user.getFirstAttribute(key(client, term));
-    if (raw == null || raw.isBlank()) return false;
+  // compact 문서의 client 항목과 jpa 테이블에서 satisfied digest에 쓰는 예약 key
+  String SATISFIED_KEY = "__satisfied";
 
-    // raw can be "version" (legacy) or "version|timestamp" (new)
-    String storedVersion = raw;
-    int sep = raw.indexOf('|');
-    if (sep >= 0) {
-      storedVersion = raw.substring(0, sep);
-    }
+  /**
+   * 현재 term.version으로 수락한 기록이 있으면 true.
+   */
+  boolean isAccepted(UserModel user, ClientModel client, Term term);
 
-    return Objects.equals(currentVersion, storedVersion);
+  /**
+   * term.version과 현재 시각으로 수락 기록을 남긴다. version이 비어 있으면 IllegalStateException.
+   */
+  default void markAccepted(UserModel user, ClientModel client, Term term) {
+    markAccepted(user, client, List.of(term));
   }
 
-  public void markAccepted(UserModel user, ClientModel client, Term term) {
-    String v = term.version();
-    if (v == null || v.isBlank()) {
-      throw new IllegalStateException("term.version is empty for key=" + term.key());
-    }
-    String value = v + "|" + Instant.now().toString();
-    user.setSingleAttribute(key(client, term), value);
+  /**
+   * 여러 약관을 한 번에 기록한다. 시각은 하나({@code Instant.now()} 한 번)이고, 쓰기는 저장소가 허용하는 만큼 묶는다
+   * (compact: attribute 1번, legacy: 약관마다 1번 + __lastAcceptedAt 1번, jpa: 한 flush). version이 빈 약관이
+   * 있으면 아무것도 쓰지 않고 IllegalStateException.
+   */
+  void markAccepted(UserModel user, ClientModel client, List<Term> terms);
 
-    // optional convenience: per-client last accepted time
-    user.setSingleAttribute("terms.accepted." + client.getClientId() + ".__lastAcceptedAt", Instant.now().toString());
+  static void requireVersions(List<Term> terms) {
+    for (Term t : terms) {
+      if (t.version() == null || t.version().isBlank()) {
+        throw new IllegalStateException("term.version is empty for key=" + t.key());
+      }
+    }
   }
 
-  private String key(ClientModel client, Term term) {
-    return "terms.accepted." + client.getClientId() + "." + term.key();
+  /**
+   * 이 client의 필수 약관을 모두 수락했을 때 기록해 둔 {@link TermsModels.TermsBundle#requiredDigest()}. 없으면 null.
+   *
+   * <p>값이 지금 bundle과 같으면 약관 수와 상관없이 약관별 기록을 보지 않고 판정이 끝난다. 다르면(version 변경,
+   * 필수 약관 추가) 약관별로 {@link #isAccepted}를 본다. 각 저장소가 자기 수락 기록과 같은 곳에 둔다 (legacy:
+   * attribute {@code terms.satisfied.<clientId>}, compact: client 항목의 {@value #SATISFIED_KEY}, jpa: TERM_KEY가
+   * {@value #SATISFIED_KEY}인 row).
+   */
+  String satisfiedDigest(UserModel user, ClientModel client);
+
+  /**
+   * 필수 약관을 모두 수락한 상태로 확인된 뒤 호출. 값이 같으면 쓰지 않는다.
+   */
+  void recordSatisfied(UserModel user, ClientModel client, String requiredDigest);
+
+  // 저장소와 상관없이 attribute에 두던 때의 key. legacy 외 저장소는 자기 쪽에 기록할 때 지운다
+  static void removeSatisfiedAttribute(UserModel user, ClientModel client) {
+    String key = LegacyTermsAcceptanceStore.SATISFIED_PREFIX + client.getClientId();
+    if (user.getFirstAttribute(key) != null) {
+      user.removeAttribute(key);
+    }
   }
 }
@@ -0,0 +1,55 @@
+package com.example.keycloak.terms;
+
+import com.example.keycloak.terms.TermsModels.TermsBundle;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * client별로 병합이 끝난 {@link TermsBundle}을 노드 메모리에 둔다. 로그인 한 번에 resolve가 여러 번 불려도
+ * 스코프 정렬/JSON 파싱은 scope 구성이 바뀌었을 때만 한다.
+ *
+ * <p>key는 client id(내부 UUID). entry는 만들 때의 scope signature(scope id, terms_priority, terms_config 값을
+ * 순서대로 편 목록)를 같이 들고 있어서, 다른 노드에서 scope attribute가 바뀌었거나 scope가 붙고 떨어진 경우에도
+ * 다음 resolve에서 miss가 된다. realm cache가 같은 String 인스턴스를 돌려주므로 비교는 대부분 참조 비교로 끝난다.
+ * client/scope 변경 이벤트는 이 노드의 entry를 바로 지우는 용도다.
+ */
+final class TermsBundleCache {
+  private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+  /**
+   * signature가 다르면 null.
+   */
+  TermsBundle get(String clientId, List<String> signature) {
+    Entry entry = entries.get(clientId);
+    if (entry == null) return null;
+    if (!entry.signature.equals(signature)) {
+      entries.remove(clientId, entry);
+      return null;
+    }
+    return entry.bundle;
+  }
+
+  void put(String clientId, List<String> signature, TermsBundle bundle) {
+    entries.put(clientId, new Entry(signature, bundle));
+  }
+
+  void invalidate(String clientId) {
+    entries.remove(clientId);
+  }
+
+  void clear() {
+    entries.clear();
+  }
+
+  private static final class Entry {
+    final List<String> signature;
+    final TermsBundle bundle;
+
+    Entry(List<String> signature, TermsBundle bundle) {
+      this.signature = signature;
+      this.bundle = bundle;
+    }
+  }
+}
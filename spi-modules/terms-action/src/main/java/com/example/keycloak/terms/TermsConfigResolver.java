@@ -8,6 +8,7 @@ import org.keycloak.models.ClientModel;
 import org.keycloak.models.ClientScopeModel;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -20,11 +21,63 @@ public final class TermsConfigResolver {
   private static final String ATTR_PRIORITY = "terms_priority";
   private static final ObjectMapper MAPPER = new ObjectMapper();
 
+  // null이면 매번 병합/파싱 (벤치마크/테스트용)
+  private final TermsBundleCache bundleCache;
+  private final ScopeTermsCache scopeTermsCache;
+
+  public TermsConfigResolver() {
+    this(null, null);
+  }
+
+  TermsConfigResolver(TermsBundleCache bundleCache, ScopeTermsCache scopeTermsCache) {
+    this.bundleCache = bundleCache;
+    this.scopeTermsCache = scopeTermsCache;
+  }
+
   public TermsBundle resolve(ClientModel client) {
     List<ClientScopeModel> allScopes = new ArrayList<>();
     allScopes.addAll(client.getClientScopes(true).values());
     allScopes.addAll(client.getClientScopes(false).values());
 
+    if (bundleCache == null) {
+      return merge(client, allScopes);
+    }
+
+    List<String> signature = signature(allScopes);
+    TermsBundle cached = bundleCache.get(client.getId(), signature);
+    if (cached != null) {
+      return cached;
+    }
+
+    // 설정 오류(중복 key 등)는 캐시하지 않고 매번 다시 던진다
+    TermsBundle bundle = merge(client, allScopes);
+    bundleCache.put(client.getId(), signature, bundle);
+    return bundle;
+  }
+
+  /**
+   * scope 하나의 terms_config만 파싱/검증해서 scope 캐시에 넣는다 (기동/import 때 검증용). 오류는 로그인 때와
+   * 같은 IllegalStateException이고, 메시지의 client는 '-'다.
+   */
+  List<Term> precompile(ClientScopeModel scope) {
+    return scopeTerms(scope, null);
+  }
+
+  /**
+   * 병합 결과에 영향을 주는 값만 순서대로 편다: scope id, terms_priority, terms_config.
+   */
+  private static List<String> signature(List<ClientScopeModel> scopes) {
+    String[] values = new String[scopes.size() * 3];
+    int i = 0;
+    for (ClientScopeModel scope : scopes) {
+      values[i++] = scope.getId();
+      values[i++] = scope.getAttribute(ATTR_PRIORITY);
+      values[i++] = scope.getAttribute(ATTR_TERMS_CONFIG);
+    }
+    return Arrays.asList(values);
+  }
+
+  private TermsBundle merge(ClientModel client, List<ClientScopeModel> allScopes) {
     List<ScopeWithPriority> ordered = allScopes.stream()
         .map(s -> new ScopeWithPriority(s, parsePriority(s.getAttribute(ATTR_PRIORITY))))
         .sorted(Comparator
@@ -38,11 +91,10 @@ public final class TermsConfigResolver {
       ClientScopeModel scope = sp.scope();
       int prio = sp.priority();
 
-      List<ScopeTermConfig> scopeTerms = parseTermsConfig(scope, client);
+      List<Term> scopeTerms = scopeTerms(scope, client);
       if (scopeTerms.isEmpty()) continue;
 
-      for (ScopeTermConfig cfg : scopeTerms) {
-        Term t = toTerm(cfg, client, scope);
+      for (Term t : scopeTerms) {
         String termKey = t.key();
 
         TermWithPriority existing = merged.get(termKey);
@@ -54,7 +106,7 @@ public final class TermsConfigResolver {
         if (existing.priority == prio) {
           throw new IllegalStateException(
               "Duplicate termKey '" + termKey + "' at same terms_priority=" + prio +
-                  " for client '" + client.getClientId() + "'. " +
+                  " for client '" + clientId(client) + "'. " +
                   "Conflicting scope: '" + safe(scope.getName()) + "'."
           );
         }
@@ -73,13 +125,36 @@ public final class TermsConfigResolver {
         )
         .toList();
 
-    return new TermsBundle(List.copyOf(terms));
+    return TermsBundle.of(terms);
   }
 
-  private static List<ScopeTermConfig> parseTermsConfig(ClientScopeModel scope, ClientModel client) {
+  /**
+   * scope의 terms_config를 검증된 Term 목록으로. scope 캐시가 있으면 client와 무관하게 공유한다 (오류 메시지의
+   * client는 처음 파싱한 client 기준이고, 실패한 scope는 캐시하지 않으니 매번 해당 client로 다시 던진다).
+   */
+  private List<Term> scopeTerms(ClientScopeModel scope, ClientModel client) {
     String raw = trimToEmpty(scope.getAttribute(ATTR_TERMS_CONFIG));
     if (raw.isBlank()) return List.of();
 
+    if (scopeTermsCache != null) {
+      List<Term> cached = scopeTermsCache.get(scope.getId(), raw);
+      if (cached != null) {
+        return cached;
+      }
+    }
+
+    List<Term> terms = new ArrayList<>();
+    for (ScopeTermConfig cfg : parseTermsConfig(raw, scope, client)) {
+      terms.add(toTerm(cfg, client, scope));
+    }
+
+    if (scopeTermsCache != null) {
+      scopeTermsCache.put(scope.getId(), raw, terms);
+    }
+    return terms;
+  }
+
+  private static List<ScopeTermConfig> parseTermsConfig(String raw, ClientScopeModel scope, ClientModel client) {
     try {
       TermsConfigPayload payload = MAPPER.readValue(raw, TermsConfigPayload.class);
       if (payload == null || payload.terms == null) {
@@ -87,10 +162,10 @@ public final class TermsConfigResolver {
       }
       return payload.terms;
     } catch (Exception e) {
-      LOG.errorf(e, "Invalid terms_config JSON in scope '%s' for client '%s'", safe(scope.getName()), client.getClientId());
+      LOG.errorf(e, "Invalid terms_config JSON in scope '%s' for client '%s'", safe(scope.getName()), clientId(client));
       throw new IllegalStateException(
           "Invalid terms_config JSON in scope '" + safe(scope.getName()) +
-              "' for client '" + client.getClientId() + "': " + e.getMessage(),
+              "' for client '" + clientId(client) + "': " + e.getMessage(),
           e
       );
     }
@@ -101,7 +176,7 @@ public final class TermsConfigResolver {
     if (termKey.isBlank()) {
       throw new IllegalStateException(
           "Invalid term key in scope '" + safe(scope.getName()) +
-              "' for client '" + client.getClientId() + "'."
+              "' for client '" + clientId(client) + "'."
       );
     }
 
@@ -109,7 +184,7 @@ public final class TermsConfigResolver {
     if (version.isBlank()) {
       throw new IllegalStateException(
           "Invalid term (missing version) for key='" + termKey + "' " +
-              "in scope '" + safe(scope.getName()) + "' for client '" + client.getClientId() + "'."
+              "in scope '" + safe(scope.getName()) + "' for client '" + clientId(client) + "'."
       );
     }
 
@@ -131,6 +206,11 @@ public final class TermsConfigResolver {
     }
   }
 
+  // precompile(scope)은 client 없이 부른다
+  private static String clientId(ClientModel client) {
+    return client == null ? "-" : client.getClientId();
+  }
+
   private static String trimToEmpty(String s) {
     return s == null ? "" : s.trim();
   }
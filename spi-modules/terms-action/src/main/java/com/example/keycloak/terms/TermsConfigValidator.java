@@ -0,0 +1,131 @@
+package com.example.keycloak.terms;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.jboss.logging.Logger;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.ClientScopeModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 모든 scope의 terms_config와 client별 병합 결과를 미리 검증한다. 잘못된 JSON, key/version 누락, 같은
+ * terms_priority의 중복 key가 첫 로그인에서 IllegalStateException으로 터지기 전에 로그와 지표로 드러난다.
+ *
+ * <p>검증은 resolver를 그대로 쓰므로 성공한 scope/client는 그 자리에서 캐시에 들어가고, 첫 로그인은 파싱/병합
+ * 비용을 내지 않는다. 노드 캐시라 노드마다 기동 시 한 번씩 돈다.
+ *
+ * <p>지표:
+ * <ul>
+ *   <li>terms.config.validations (counter, kind=scope|client, result=ok|invalid)</li>
+ *   <li>terms.config.invalid (gauge) — 마지막 검증에서 문제가 있던 scope+client 수 (realm 합)</li>
+ * </ul>
+ */
+final class TermsConfigValidator {
+
+  private static final Logger LOG = Logger.getLogger(TermsConfigValidator.class);
+  private static final String ATTR_TERMS_CONFIG = "terms_config";
+
+  private final TermsConfigResolver resolver;
+  private final Counter scopeOk;
+  private final Counter scopeInvalid;
+  private final Counter clientOk;
+  private final Counter clientInvalid;
+  // realm id → 마지막 검증의 문제 수
+  private final Map<String, Integer> invalidByRealm = new ConcurrentHashMap<>();
+
+  TermsConfigValidator(TermsConfigResolver resolver, MeterRegistry registry) {
+    this.resolver = resolver;
+    this.scopeOk = counter(registry, "scope", "ok");
+    this.scopeInvalid = counter(registry, "scope", "invalid");
+    this.clientOk = counter(registry, "client", "ok");
+    this.clientInvalid = counter(registry, "client", "invalid");
+    Gauge.builder("terms.config.invalid", invalidByRealm,
+            m -> m.values().stream().mapToInt(Integer::intValue).sum())
+        .description("Scopes and clients whose terms_config failed validation in the last scan")
+        .register(registry);
+  }
+
+  private static Counter counter(MeterRegistry registry, String kind, String result) {
+    return Counter.builder("terms.config.validations")
+        .description("terms_config validations at startup/import")
+        .tag("kind", kind)
+        .tag("result", result)
+        .register(registry);
+  }
+
+  /**
+   * 기동 시(PostMigrationEvent): realm마다 별도 트랜잭션으로 검증한다. 한 realm이 실패해도 나머지는 계속한다.
+   */
+  void validateAll(KeycloakSessionFactory factory) {
+    long started = System.currentTimeMillis();
+    List<String> realmIds = KeycloakModelUtils.runJobInTransactionWithResult(factory,
+        session -> session.realms().getRealmsStream().map(RealmModel::getId).toList());
+
+    int invalid = 0;
+    for (String realmId : realmIds) {
+      try {
+        invalid += KeycloakModelUtils.runJobInTransactionWithResult(factory, session -> {
+          RealmModel realm = session.realms().getRealm(realmId);
+          return realm == null ? 0 : validateRealm(session, realm);
+        });
+      } catch (RuntimeException e) {
+        LOG.warnf(e, "TERMS config validation aborted realm=%s", realmId);
+      }
+    }
+    LOG.infof("TERMS config validation done realms=%d invalid=%d in %dms",
+        realmIds.size(), invalid, System.currentTimeMillis() - started);
+  }
+
+  /**
+   * realm 하나를 검증하고 문제 수를 돌려준다. import 직후(RealmPostCreateEvent)에는 import 트랜잭션 안에서 부른다.
+   */
+  int validateRealm(KeycloakSession session, RealmModel realm) {
+    int invalid = 0;
+
+    // scope 단위 오류(JSON, key/version): client에 붙지 않은 scope도 본다
+    for (ClientScopeModel scope : (Iterable<ClientScopeModel>) realm.getClientScopesStream()::iterator) {
+      String raw = scope.getAttribute(ATTR_TERMS_CONFIG);
+      if (raw == null || raw.isBlank()) continue;
+      try {
+        resolver.precompile(scope);
+        scopeOk.increment();
+      } catch (IllegalStateException e) {
+        invalid++;
+        scopeInvalid.increment();
+        LOG.errorf("TERMS invalid terms_config realm=%s scope=%s: %s", realm.getName(), scope.getName(), e.getMessage());
+      }
+    }
+
+    // client 단위 병합 오류(같은 priority의 중복 key). 성공하면 bundle 캐시까지 채워진다
+    for (ClientModel client : (Iterable<ClientModel>) realm.getClientsStream()::iterator) {
+      try {
+        resolver.resolve(client);
+        clientOk.increment();
+      } catch (IllegalStateException e) {
+        invalid++;
+        clientInvalid.increment();
+        LOG.errorf("TERMS terms bundle cannot be built realm=%s client=%s: %s",
+            realm.getName(), client.getClientId(), e.getMessage());
+      }
+    }
+
+    invalidByRealm.put(realm.getId(), invalid);
+    if (invalid > 0) {
+      LOG.warnf("TERMS realm=%s has %d invalid terms_config scope(s)/client(s); affected logins will fail",
+          realm.getName(), invalid);
+    }
+    return invalid;
+  }
+
+  void forgetRealm(String realmId) {
+    invalidByRealm.remove(realmId);
+  }
+}
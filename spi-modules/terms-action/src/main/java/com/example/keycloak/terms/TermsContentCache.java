@@ -0,0 +1,349 @@
+package com.example.keycloak.terms;
+
+import com.example.keycloak.terms.TermsModels.Term;
+import org.jboss.logging.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Pattern;
+
+/**
+ * 약관 본문(term.url)을 서버에서 받아 노드 메모리에 둔다. 로그인 화면은 본문을 페이지에 넣어 그리므로 브라우저가
+ * 외부 문서 호스트에 요청하지 않는다.
+ *
+ * <p>key는 (version, url). version이 바뀌면 새 문서로 보고 다시 받는다. 같은 version 안에서는 revalidate 주기가
+ * 지나면 ETag/Last-Modified로 조건부 요청을 보내고, 304면 본문은 그대로 두고 시각만 갱신한다. 요청이 실패하면 가진
+ * 본문을 계속 쓰고(없으면 실패로 기억) 다음 주기에 다시 시도한다. 로그인은 캐시에 아무것도 없는 문서만 기다리고,
+ * revalidate는 가진 본문(또는 실패 기록)으로 화면을 그린 뒤 뒤에서 한다.
+ *
+ * <p>크기 제한: entry 수는 LRU로 묶고, maxBytes를 넘는 문서는 본문을 두지 않는다(링크만 보여줌). 본문은 text로 정리해서 두고
+ * (HTML이면 tag 제거), 화면에는 escape된 text로만 나간다. url은 bundle(scope의 terms_config)에서만 오고
+ * http/https만 받는다. redirect는 따라가지 않는다(다른 host나 내부 주소로 가지 않도록). 3xx면 링크만 보여주므로
+ * terms_config에는 최종 문서 url을 둔다.
+ *
+ * <p>같은 문서를 여러 로그인이 동시에 기다리면 요청은 하나만 나간다. {@code HttpRequest.timeout}은 응답 header까지만
+ * 보므로, 본문까지 포함한 요청 전체에 timeout 두 배의 상한을 두고 넘으면 요청을 끊고 실패로 기억한다. 본문은 thread를
+ * 막고 읽지 않고 maxBytes까지만 받는 subscriber로 모은다.
+ */
+final class TermsContentCache {
+
+  static final int DEFAULT_MAX_ENTRIES = 256;
+  static final int DEFAULT_MAX_BYTES = 256 * 1024;
+  static final long DEFAULT_REVALIDATE_MS = TimeUnit.MINUTES.toMillis(10);
+  static final int DEFAULT_TIMEOUT_MS = 3000;
+
+  private static final Logger LOG = Logger.getLogger(TermsContentCache.class);
+
+  private static final Pattern HTML_DROP = Pattern.compile("(?is)<(script|style|head)[^>]*>.*?</\\1\\s*>|<!--.*?-->");
+  private static final Pattern HTML_BREAK = Pattern.compile("(?i)<br\\s*/?>|</(p|div|li|tr|h[1-6])\\s*>");
+  private static final Pattern HTML_TAG = Pattern.compile("<[^>]*>");
+  private static final Pattern CONTROL = Pattern.compile("[\\x00-\\x08\\x0B\\x0C\\x0E-\\x1F\\x7F]");
+  private static final Pattern BLANK_LINES = Pattern.compile("\n[ \t]*(\n[ \t]*){2,}");
+
+  private final HttpClient http;
+  private final int maxEntries;
+  private final int maxBytes;
+  private final long revalidateMs;
+  private final int timeoutMs;
+
+  // access-order LinkedHashMap = LRU. 조회/갱신이 짧아서 lock 하나로 둔다
+  private final Map<String, Entry> entries;
+  private final Map<String, CompletableFuture<Entry>> inFlight = new ConcurrentHashMap<>();
+
+  TermsContentCache(int maxEntries, int maxBytes, long revalidateMs, int timeoutMs) {
+    this.maxEntries = maxEntries;
+    this.maxBytes = maxBytes;
+    this.revalidateMs = revalidateMs;
+    this.timeoutMs = timeoutMs;
+    this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+        return size() > TermsContentCache.this.maxEntries;
+      }
+    };
+    this.http = HttpClient.newBuilder()
+        .connectTimeout(Duration.ofMillis(timeoutMs))
+        .followRedirects(HttpClient.Redirect.NEVER)
+        .build();
+  }
+
+  /**
+   * term key → 본문. 받지 못한 term은 map에 없다(화면은 링크만 보여줌). 캐시에 없는 문서는 병렬로 요청하고
+   * timeout까지만 기다린다. revalidate가 필요한 문서는 가진 값으로 바로 답하고 요청은 기다리지 않는다.
+   */
+  Map<String, String> contents(List<Term> terms) {
+    Map<String, String> result = new LinkedHashMap<>();
+    List<Term> pendingTerms = new ArrayList<>();
+    List<CompletableFuture<Entry>> pending = new ArrayList<>();
+    long now = System.currentTimeMillis();
+
+    for (Term t : terms) {
+      if (!isFetchable(t.url())) continue;
+      String key = cacheKey(t);
+      Entry entry = get(key);
+      if (entry != null) {
+        if (entry.text != null) result.put(t.key(), entry.text);
+        if (now - entry.checkedAt >= revalidateMs) {
+          // 결과는 다음 로그인부터 쓴다
+          fetchOnce(key, t.url(), entry);
+        }
+        continue;
+      }
+      pendingTerms.add(t);
+      pending.add(fetchOnce(key, t.url(), entry));
+    }
+
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+    for (int i = 0; i < pending.size(); i++) {
+      Entry entry;
+      try {
+        long waitNanos = Math.max(0, deadline - System.nanoTime());
+        entry = pending.get(i).get(waitNanos, TimeUnit.NANOSECONDS);
+      } catch (Exception e) {
+        // timeout이면 이번 화면은 링크만 보여주고, 요청은 계속 진행돼서 다음 로그인이 쓴다
+        entry = get(cacheKey(pendingTerms.get(i)));
+      }
+      if (entry != null && entry.text != null) {
+        result.put(pendingTerms.get(i).key(), entry.text);
+      }
+    }
+    return result;
+  }
+
+  void clear() {
+    synchronized (entries) {
+      entries.clear();
+    }
+  }
+
+  private CompletableFuture<Entry> fetchOnce(String key, String url, Entry previous) {
+    CompletableFuture<Entry> created = new CompletableFuture<>();
+    CompletableFuture<Entry> running = inFlight.putIfAbsent(key, created);
+    if (running != null) return running;
+
+    try {
+      fetch(url, previous).whenComplete((entry, e) ->
+          finish(key, created, e == null ? entry : checkedOrFailed(previous, System.currentTimeMillis())));
+    } catch (RuntimeException e) {
+      // 잘못된 url 등 요청을 만들지 못한 경우
+      LOG.warnf("TERMS content fetch failed url=%s: %s", url, e.getMessage());
+      finish(key, created, previous);
+    }
+    return created;
+  }
+
+  private void finish(String key, CompletableFuture<Entry> future, Entry entry) {
+    // 어떤 경우에도 inFlight에서 빠지고 future가 끝나야 다음 로그인/revalidate가 막히지 않는다
+    if (entry != null) put(key, entry);
+    inFlight.remove(key, future);
+    future.complete(entry);
+  }
+
+  private CompletableFuture<Entry> fetch(String url, Entry previous) {
+    HttpRequest.Builder req = HttpRequest.newBuilder(URI.create(url))
+        .timeout(Duration.ofMillis(timeoutMs))
+        .header("Accept", "text/plain, text/html;q=0.9, */*;q=0.1")
+        .GET();
+    if (previous != null && previous.etag != null) {
+      req.header("If-None-Match", previous.etag);
+    }
+    if (previous != null && previous.lastModified != null) {
+      req.header("If-Modified-Since", previous.lastModified);
+    }
+
+    // 2xx만 본문을 받는다 (304/오류 응답 본문은 버림)
+    HttpResponse.BodyHandler<byte[]> handler = info -> info.statusCode() >= 200 && info.statusCode() < 300
+        ? new LimitedBody(maxBytes)
+        : HttpResponse.BodySubscribers.replacing(null);
+    long deadlineMs = 2L * timeoutMs;
+
+    CompletableFuture<HttpResponse<byte[]>> send = http.sendAsync(req.build(), handler);
+    return send
+        .thenApply(resp -> toEntry(url, resp, previous))
+        .orTimeout(deadlineMs, TimeUnit.MILLISECONDS)
+        .exceptionally(e -> {
+          // 본문을 아직 받는 중이면 연결을 끊는다 (끝난 요청이면 아무 일 없음)
+          send.cancel(true);
+          Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+          LOG.warnf("TERMS content fetch failed url=%s: %s", url,
+              cause instanceof TimeoutException ? "no complete response within " + deadlineMs + "ms" : cause.getMessage());
+          // 실패해도 가진 본문은 유지하고, 다음 시도는 revalidate 주기 뒤로 미룬다
+          return checkedOrFailed(previous, System.currentTimeMillis());
+        });
+  }
+
+  private Entry toEntry(String url, HttpResponse<byte[]> resp, Entry previous) {
+    long now = System.currentTimeMillis();
+    if (resp.statusCode() == 304 && previous != null) {
+      return previous.checked(now);
+    }
+    if (resp.statusCode() < 200 || resp.statusCode() >= 300) {
+      LOG.warnf("TERMS content fetch url=%s returned status %d", url, resp.statusCode());
+      return checkedOrFailed(previous, now);
+    }
+
+    byte[] bytes = resp.body();
+    if (bytes == null) {
+      LOG.warnf("TERMS content url=%s is larger than %d bytes, not rendered inline", url, maxBytes);
+      return Entry.failed(now);
+    }
+
+    String contentType = resp.headers().firstValue("Content-Type").orElse("");
+    String text = sanitize(new String(bytes, charset(contentType)), contentType);
+    return new Entry(
+        text,
+        resp.headers().firstValue("ETag").orElse(null),
+        resp.headers().firstValue("Last-Modified").orElse(null),
+        now);
+  }
+
+  // 실패도 revalidate 주기 동안 기억해서, 없는 문서를 로그인마다 다시 요청하지 않는다
+  private static Entry checkedOrFailed(Entry previous, long now) {
+    return previous == null ? Entry.failed(now) : previous.checked(now);
+  }
+
+  static String sanitize(String raw, String contentType) {
+    String text = raw.replace("\r\n", "\n").replace('\r', '\n');
+    if (contentType.toLowerCase(Locale.ROOT).contains("html")) {
+      text = HTML_DROP.matcher(text).replaceAll("");
+      text = HTML_BREAK.matcher(text).replaceAll("\n");
+      text = HTML_TAG.matcher(text).replaceAll("");
+      text = text.replace("&nbsp;", " ")
+          .replace("&lt;", "<")
+          .replace("&gt;", ">")
+          .replace("&quot;", "\"")
+          .replace("&#39;", "'")
+          .replace("&amp;", "&");
+    }
+    text = CONTROL.matcher(text).replaceAll("");
+    return BLANK_LINES.matcher(text).replaceAll("\n\n").strip();
+  }
+
+  private static Charset charset(String contentType) {
+    for (String part : contentType.split(";")) {
+      String p = part.trim();
+      if (p.regionMatches(true, 0, "charset=", 0, 8)) {
+        try {
+          return Charset.forName(p.substring(8).replace("\"", "").trim());
+        } catch (RuntimeException ignore) {
+          break;
+        }
+      }
+    }
+    return StandardCharsets.UTF_8;
+  }
+
+  private static boolean isFetchable(String url) {
+    if (url == null || url.isBlank()) return false;
+    String lower = url.toLowerCase(Locale.ROOT);
+    return lower.startsWith("https://") || lower.startsWith("http://");
+  }
+
+  private static String cacheKey(Term t) {
+    return t.version() + "\n" + t.url();
+  }
+
+  private Entry get(String key) {
+    synchronized (entries) {
+      return entries.get(key);
+    }
+  }
+
+  private void put(String key, Entry entry) {
+    synchronized (entries) {
+      entries.put(key, entry);
+    }
+  }
+
+  /**
+   * 본문을 maxBytes까지만 모은다. 넘으면 구독을 끊고 null로 끝낸다.
+   */
+  private static final class LimitedBody implements HttpResponse.BodySubscriber<byte[]> {
+    private final int maxBytes;
+    private final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+    private final CompletableFuture<byte[]> body = new CompletableFuture<>();
+    private Flow.Subscription subscription;
+
+    LimitedBody(int maxBytes) {
+      this.maxBytes = maxBytes;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+      this.subscription = subscription;
+      subscription.request(Long.MAX_VALUE);
+    }
+
+    @Override
+    public void onNext(List<ByteBuffer> items) {
+      if (body.isDone()) return;
+      for (ByteBuffer item : items) {
+        if (buf.size() + item.remaining() > maxBytes) {
+          subscription.cancel();
+          body.complete(null);
+          return;
+        }
+        byte[] chunk = new byte[item.remaining()];
+        item.get(chunk);
+        buf.writeBytes(chunk);
+      }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+      body.completeExceptionally(t);
+    }
+
+    @Override
+    public void onComplete() {
+      body.complete(buf.toByteArray());
+    }
+
+    @Override
+    public CompletionStage<byte[]> getBody() {
+      return body;
+    }
+  }
+
+  private static final class Entry {
+    // null이면 받지 못한 문서
+    final String text;
+    final String etag;
+    final String lastModified;
+    final long checkedAt;
+
+    Entry(String text, String etag, String lastModified, long checkedAt) {
+      this.text = text;
+      this.etag = etag;
+      this.lastModified = lastModified;
+      this.checkedAt = checkedAt;
+    }
+
+    static Entry failed(long now) {
+      return new Entry(null, null, null, now);
+    }
+
+    Entry checked(long now) {
+      return new Entry(text, etag, lastModified, now);
+    }
+  }
+}
@@ -0,0 +1,118 @@
+package com.example.keycloak.terms;
+
+import com.example.keycloak.terms.TermsModels.Term;
+import com.example.keycloak.terms.TermsModels.TermsBundle;
+import org.jboss.logging.Logger;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.sessions.AuthenticationSessionModel;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * 한 로그인(auth session) 안의 약관 판정 결과. evaluateTriggers → requiredActionChallenge → processAction이
+ * 수락 여부를 각자 다시 읽지 않도록 bundle digest와 미수락 필수 약관 key를 auth note 하나에 둔다.
+ *
+ * <p>note 형식: {@code <bundle digest>\n<termKey>\n<termKey>...}. note의 digest가 지금 bundle과 다르면(로그인
+ * 도중 scope/version이 바뀐 경우) 다시 판정해서 덮어쓴다.
+ *
+ * <p>auth session을 넘어서는 요약은 store의 satisfied digest다. 필수 약관을 모두 수락한 게 확인되면(약관별 판정
+ * 또는 processAction) 저장소에 남기고, 다음 로그인에서는 그 값 하나만 비교한다.
+ */
+final class TermsEvaluation {
+  static final String AUTH_NOTE = "terms.evaluation";
+
+  private static final Logger LOG = Logger.getLogger(TermsEvaluation.class);
+
+  final String digest;
+  final Set<String> missingRequired;
+
+  private TermsEvaluation(String digest, Set<String> missingRequired) {
+    this.digest = digest;
+    this.missingRequired = missingRequired;
+  }
+
+  /**
+   * 같은 bundle로 판정한 note가 있으면 그대로 쓰고, 없거나 digest가 다르면 새로 판정한다. 새 판정은 먼저 저장소에
+   * 기록된 satisfied digest를 보고, 지금 필수 약관 집합과 같으면 약관별 기록은 읽지 않는다.
+   */
+  static TermsEvaluation load(
+      AuthenticationSessionModel authSession,
+      TermsBundle bundle,
+      UserModel user,
+      ClientModel client,
+      TermsAcceptanceStore store
+  ) {
+    TermsEvaluation saved = decode(authSession.getAuthNote(AUTH_NOTE));
+    if (saved != null && saved.digest.equals(bundle.digest())) {
+      return saved;
+    }
+
+    Set<String> missing = new LinkedHashSet<>();
+    String requiredDigest = bundle.requiredDigest();
+    if (requiredDigest != null && !requiredDigest.equals(store.satisfiedDigest(user, client))) {
+      for (Term t : bundle.terms()) {
+        if (t.required() && !store.isAccepted(user, client, t)) {
+          missing.add(t.key());
+        }
+      }
+      if (missing.isEmpty()) {
+        // 약관별로는 다 수락돼 있음 (digest 도입 전 수락, 필수 약관 제거 등) → 다음 로그인부터 빠른 경로
+        recordSatisfied(user, client, store, requiredDigest);
+      }
+    }
+    TermsEvaluation fresh = new TermsEvaluation(bundle.digest(), missing);
+    fresh.save(authSession);
+    return fresh;
+  }
+
+  /**
+   * processAction에서 필수 약관을 모두 저장한 뒤 호출.
+   */
+  static void markSatisfied(
+      AuthenticationSessionModel authSession,
+      TermsBundle bundle,
+      UserModel user,
+      ClientModel client,
+      TermsAcceptanceStore store
+  ) {
+    new TermsEvaluation(bundle.digest(), Set.of()).save(authSession);
+    recordSatisfied(user, client, store, bundle.requiredDigest());
+  }
+
+  // 기록 실패(read-only federation 등)는 판정에 영향이 없고 다음 로그인에서 약관별로 다시 볼 뿐이다
+  private static void recordSatisfied(UserModel user, ClientModel client, TermsAcceptanceStore store, String digest) {
+    try {
+      store.recordSatisfied(user, client, digest);
+    } catch (RuntimeException e) {
+      LOG.debugf(e, "TERMS satisfied digest not recorded user=%s client=%s", user.getId(), client.getClientId());
+    }
+  }
+
+  /**
+   * 이 로그인에서 판정한 note가 있고, 그 뒤 bundle이 바뀌었으면 true (로그인 도중 scope/version 변경).
+   */
+  static boolean isStale(AuthenticationSessionModel authSession, TermsBundle bundle) {
+    TermsEvaluation saved = decode(authSession.getAuthNote(AUTH_NOTE));
+    return saved != null && !saved.digest.equals(bundle.digest());
+  }
+
+  boolean isSatisfied() {
+    return missingRequired.isEmpty();
+  }
+
+  private void save(AuthenticationSessionModel authSession) {
+    StringBuilder sb = new StringBuilder(digest);
+    missingRequired.forEach(k -> sb.append('\n').append(k));
+    authSession.setAuthNote(AUTH_NOTE, sb.toString());
+  }
+
+  private static TermsEvaluation decode(String raw) {
+    if (raw == null || raw.isEmpty()) return null;
+    String[] parts = raw.split("\n");
+    Set<String> missing = new LinkedHashSet<>(Arrays.asList(parts).subList(1, parts.length));
+    return new TermsEvaluation(parts[0], missing);
+  }
+}
@@ -1,6 +1,12 @@
 package com.example.keycloak.terms;
 
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Comparator;
 import java.util.List;
 
 public final class TermsModels {
@@ -14,5 +20,39 @@ public final class TermsModels {
       boolean required
   ) implements Serializable {}
 
-  public record TermsBundle(List<Term> terms) implements Serializable {}
+  /**
+   * digest는 수락 판정에 쓰이는 값(key, version, required)만으로 만든다. title/url 변경은 다시 판정할 필요가
+   * 없어서 넣지 않는다.
+   *
+   * <p>requiredDigest는 필수 약관의 (key, version)만 key 순으로 모은 값이다. 유저가 이 집합을 모두 수락했다는
+   * 표시로 저장해 두고 다음 로그인에서 비교한다 ({@link TermsAcceptanceStore#satisfiedDigest}). 선택 약관이나
+   * 표시 순서가 바뀌어도 달라지지 않는다. 필수 약관이 없으면 null.
+   */
+  public record TermsBundle(List<Term> terms, String digest, String requiredDigest) implements Serializable {
+    public static TermsBundle of(List<Term> terms) {
+      List<Term> copy = List.copyOf(terms);
+      List<Term> required = copy.stream()
+          .filter(Term::required)
+          .sorted(Comparator.comparing(Term::key, Comparator.nullsFirst(Comparator.naturalOrder())))
+          .toList();
+      return new TermsBundle(copy, digest(copy), required.isEmpty() ? null : digest(required));
+    }
+
+    private static String digest(List<Term> terms) {
+      try {
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        for (Term t : terms) {
+          md.update(String.valueOf(t.key()).getBytes(StandardCharsets.UTF_8));
+          md.update((byte) 0);
+          md.update(String.valueOf(t.version()).getBytes(StandardCharsets.UTF_8));
+          md.update((byte) (t.required() ? 1 : 2));
+        }
+        // auth note/user attribute에 들어가는 값이라 128bit로 줄인다
+        byte[] hash = md.digest();
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOf(hash, 16));
+      } catch (NoSuchAlgorithmException e) {
+        throw new IllegalStateException("SHA-256 not available", e);
+      }
+    }
+  }
 }
@@ -1,16 +1,45 @@
 package com.example.keycloak.terms;
 
+import io.micrometer.core.instrument.Metrics;
+import org.jboss.logging.Logger;
 import org.keycloak.Config;
 import org.keycloak.authentication.RequiredActionFactory;
 import org.keycloak.authentication.RequiredActionProvider;
+import org.keycloak.cluster.ClusterProvider;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.ClientScopeModel;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.models.utils.PostMigrationEvent;
+import org.keycloak.provider.ProviderConfigProperty;
+import org.keycloak.provider.ProviderConfigurationBuilder;
+import org.keycloak.timer.TimerProvider;
+
+import java.util.List;
+import java.util.Locale;
 
 public class TermsRequiredActionFactory implements RequiredActionFactory {
 
   // MUST match Terraform keycloak_required_action.alias
   public static final String PROVIDER_ID = "terms-required-action";
 
+  private static final Logger LOG = Logger.getLogger(TermsRequiredActionFactory.class);
+
+  // 노드 단위 캐시라 factory가 들고 있고, provider(요청 단위)는 같은 resolver를 공유한다
+  private final TermsBundleCache bundleCache = new TermsBundleCache();
+  private final ScopeTermsCache scopeTermsCache = new ScopeTermsCache();
+  private final TermsConfigResolver resolver = new TermsConfigResolver(bundleCache, scopeTermsCache);
+  private String acceptanceStoreMode = TermsAcceptanceStore.MODE_LEGACY;
+  private TermsContentCache contentCache;
+  private boolean validateConfig = true;
+  private TermsConfigValidator validator;
+  private long propagationIntervalMs;
+  private int propagationPageSize;
+  private long propagationPauseMs;
+  private TermsVersionPropagator propagator;
+
   @Override
   public String getId() {
     return PROVIDER_ID;
@@ -24,12 +53,141 @@ public class TermsRequiredActionFactory implements RequiredActionFactory {
   @Override
   public RequiredActionProvider create(KeycloakSession session) {
     return new TermsRequiredActionProvider(
-        new TermsConfigResolver(),
-        new TermsAcceptanceStore()
+        resolver,
+        createStore(session),
+        contentCache
     );
   }
 
-  @Override public void init(Config.Scope config) {}
-  @Override public void postInit(KeycloakSessionFactory factory) {}
-  @Override public void close() {}
+  // compact/jpa 저장소는 요청 안 캐시를 들고 있어서 provider마다 새로 만든다
+  private TermsAcceptanceStore createStore(KeycloakSession session) {
+    if (TermsAcceptanceStore.MODE_COMPACT.equals(acceptanceStoreMode)) {
+      return new CompactTermsAcceptanceStore();
+    }
+    if (TermsAcceptanceStore.MODE_JPA.equals(acceptanceStoreMode)) {
+      return new JpaTermsAcceptanceStore(session);
+    }
+    return new LegacyTermsAcceptanceStore();
+  }
+
+  @Override
+  public void init(Config.Scope config) {
+    String mode = config.get("acceptanceStore", TermsAcceptanceStore.MODE_LEGACY).trim().toLowerCase(Locale.ROOT);
+    if (!TermsAcceptanceStore.MODE_LEGACY.equals(mode)
+        && !TermsAcceptanceStore.MODE_COMPACT.equals(mode)
+        && !TermsAcceptanceStore.MODE_JPA.equals(mode)) {
+      throw new IllegalArgumentException("Unknown terms acceptanceStore mode: " + mode);
+    }
+    this.acceptanceStoreMode = mode;
+
+    this.contentCache = new TermsContentCache(
+        config.getInt("contentCacheEntries", TermsContentCache.DEFAULT_MAX_ENTRIES),
+        config.getInt("contentMaxBytes", TermsContentCache.DEFAULT_MAX_BYTES),
+        config.getLong("contentRevalidateSeconds", TermsContentCache.DEFAULT_REVALIDATE_MS / 1000) * 1000,
+        config.getInt("contentFetchTimeoutMs", TermsContentCache.DEFAULT_TIMEOUT_MS));
+    this.validateConfig = config.getBoolean("validateConfig", true);
+    this.propagationIntervalMs = Math.max(0, config.getLong("propagationIntervalSeconds", 300L)) * 1000L;
+    this.propagationPageSize = config.getInt("propagationPageSize", 200);
+    this.propagationPauseMs = config.getLong("propagationPauseMs", 200L);
+  }
+
+  @Override
+  public List<ProviderConfigProperty> getConfigMetadata() {
+    return ProviderConfigurationBuilder.create()
+        .property().name("acceptanceStore").type("string").defaultValue(TermsAcceptanceStore.MODE_LEGACY)
+        .options(TermsAcceptanceStore.MODE_LEGACY, TermsAcceptanceStore.MODE_COMPACT, TermsAcceptanceStore.MODE_JPA)
+        .helpText("Where term acceptances are stored: one attribute per term (legacy), a single "
+            + "JSON attribute per user (compact) or the TERMS_ACCEPTANCE table (jpa). "
+            + "compact and jpa migrate legacy keys on read").add()
+        .property().name("contentCacheEntries").type("int").defaultValue(TermsContentCache.DEFAULT_MAX_ENTRIES)
+        .helpText("Max number of term documents (url, version) kept in memory on each node").add()
+        .property().name("contentMaxBytes").type("int").defaultValue(TermsContentCache.DEFAULT_MAX_BYTES)
+        .helpText("Term documents larger than this are not rendered inline (only linked)").add()
+        .property().name("contentRevalidateSeconds").type("int")
+        .defaultValue(TermsContentCache.DEFAULT_REVALIDATE_MS / 1000)
+        .helpText("How long a cached term document is used before it is revalidated with ETag/Last-Modified").add()
+        .property().name("contentFetchTimeoutMs").type("int").defaultValue(TermsContentCache.DEFAULT_TIMEOUT_MS)
+        .helpText("How long the terms page waits for term documents that are not cached yet").add()
+        .property().name("validateConfig").type("boolean").defaultValue(true)
+        .helpText("Validate and precompile every scope's terms_config at startup and after realm import, "
+            + "reporting broken configs in logs and metrics before the first login hits them").add()
+        .property().name("propagationIntervalSeconds").type("int").defaultValue(300)
+        .helpText("How often one node in the cluster checks scopes for required term version bumps, warms "
+            + "caches (other nodes are notified) and flags users who accepted the previous version. 0 disables").add()
+        .property().name("propagationPageSize").type("int").defaultValue(200)
+        .helpText("Users flagged per transaction by the version bump job").add()
+        .property().name("propagationPauseMs").type("int").defaultValue(200)
+        .helpText("Pause between pages of the version bump job").add()
+        .build();
+  }
+
+  @Override
+  public void postInit(KeycloakSessionFactory factory) {
+    if (validateConfig) {
+      this.validator = new TermsConfigValidator(resolver, Metrics.globalRegistry);
+    }
+    if (propagationIntervalMs > 0) {
+      this.propagator = new TermsVersionPropagator(factory, resolver, acceptanceStoreMode,
+          propagationPageSize, propagationPauseMs, propagationIntervalMs, Metrics.globalRegistry);
+      KeycloakModelUtils.runJobInTransaction(factory, (KeycloakSession session) -> {
+        ClusterProvider cluster = session.getProvider(ClusterProvider.class);
+        if (cluster != null) {
+          propagator.listen(cluster);
+        }
+        TimerProvider timer = session.getProvider(TimerProvider.class);
+        timer.scheduleTask(propagator::tick, propagationIntervalMs, TermsVersionPropagator.TIMER_TASK_NAME);
+      });
+    }
+
+    // scope attribute 변경은 이벤트가 없어서 signature 비교로 잡고, 여기서는 이 노드에서 난 변경을 바로 지운다
+    factory.register(event -> {
+      if (event instanceof ClientModel.ClientUpdatedEvent) {
+        bundleCache.invalidate(((ClientModel.ClientUpdatedEvent) event).getUpdatedClient().getId());
+      } else if (event instanceof ClientModel.ClientIdChangeEvent) {
+        bundleCache.invalidate(((ClientModel.ClientIdChangeEvent) event).getUpdatedClient().getId());
+      } else if (event instanceof ClientModel.ClientRemovedEvent) {
+        bundleCache.invalidate(((ClientModel.ClientRemovedEvent) event).getClient().getId());
+      } else if (event instanceof ClientScopeModel.ClientScopeRemovedEvent) {
+        String scopeId = ((ClientScopeModel.ClientScopeRemovedEvent) event).getClientScope().getId();
+        scopeTermsCache.invalidate(scopeId);
+        // scope가 어느 client에 붙어 있었는지 여기서는 모르니 전부 비운다
+        bundleCache.clear();
+        if (propagator != null) {
+          propagator.invalidate(scopeId);
+        }
+      } else if (event instanceof RealmModel.RealmRemovedEvent) {
+        scopeTermsCache.clear();
+        bundleCache.clear();
+        String realmId = ((RealmModel.RealmRemovedEvent) event).getRealm().getId();
+        if (validator != null) {
+          validator.forgetRealm(realmId);
+        }
+        if (propagator != null) {
+          propagator.forgetRealm(realmId);
+        }
+      } else if (validator != null && event instanceof PostMigrationEvent) {
+        validator.validateAll(((PostMigrationEvent) event).getFactory());
+      } else if (validator != null && event instanceof RealmModel.RealmPostCreateEvent) {
+        // realm import/생성 직후. 검증 실패가 import를 막으면 안 된다
+        RealmModel.RealmPostCreateEvent e = (RealmModel.RealmPostCreateEvent) event;
+        try {
+          validator.validateRealm(e.getKeycloakSession(), e.getCreatedRealm());
+        } catch (RuntimeException ex) {
+          LOG.warnf(ex, "TERMS config validation failed realm=%s", e.getCreatedRealm().getName());
+        }
+      }
+    });
+  }
+
+  @Override
+  public void close() {
+    bundleCache.clear();
+    scopeTermsCache.clear();
+    if (contentCache != null) {
+      contentCache.clear();
+    }
+    if (propagator != null) {
+      propagator.close();
+    }
+  }
 }
@@ -8,7 +8,9 @@ import org.jboss.logging.Logger;
 import org.keycloak.authentication.AuthenticationFlowError;
 import org.keycloak.authentication.RequiredActionContext;
 import org.keycloak.authentication.RequiredActionProvider;
+import org.keycloak.forms.login.LoginFormsProvider;
 import org.keycloak.models.ClientModel;
+import org.keycloak.models.Constants;
 import org.keycloak.models.UserModel;
 import org.keycloak.sessions.AuthenticationSessionModel;
 
@@ -31,10 +33,16 @@ public class TermsRequiredActionProvider implements RequiredActionProvider {
 
   private final TermsConfigResolver resolver;
   private final TermsAcceptanceStore store;
+  private final TermsContentCache contentCache;
 
-  public TermsRequiredActionProvider(TermsConfigResolver resolver, TermsAcceptanceStore store) {
+  public TermsRequiredActionProvider(
+      TermsConfigResolver resolver,
+      TermsAcceptanceStore store,
+      TermsContentCache contentCache
+  ) {
     this.resolver = resolver;
     this.store = store;
+    this.contentCache = contentCache;
   }
 
   @Override
@@ -48,10 +56,9 @@ public class TermsRequiredActionProvider implements RequiredActionProvider {
     }
 
     TermsBundle bundle = resolver.resolve(client);
-    List<Term> terms = (bundle == null || bundle.terms() == null) ? List.of() : bundle.terms();
-    List<Term> requiredTerms = terms.stream().filter(Term::required).toList();
-
-    boolean missingRequired = requiredTerms.stream().anyMatch(t -> !store.isAccepted(user, client, t));
+    // 판정 결과는 auth note에 남겨서 challenge/processAction이 다시 쓴다
+    TermsEvaluation evaluation = TermsEvaluation.load(authSession, bundle, user, client, store);
+    boolean missingRequired = !evaluation.isSatisfied();
 
     LOG.debugf("TERMS evaluateTriggers client=%s user=%s missingRequired=%s",
         client.getClientId(), safeUser(user), missingRequired);
@@ -68,13 +75,25 @@ public class TermsRequiredActionProvider implements RequiredActionProvider {
 
   @Override
   public void requiredActionChallenge(RequiredActionContext context) {
-    ClientModel client = context.getAuthenticationSession().getClient();
+    AuthenticationSessionModel authSession = context.getAuthenticationSession();
+    ClientModel client = authSession.getClient();
     TermsBundle bundle = resolver.resolve(client);
 
     List<Term> terms = (bundle == null || bundle.terms() == null) ? List.of() : bundle.terms();
 
-    Response challenge = context.form()
-        .setAttribute("terms", terms)
+    // evaluateTriggers 이후 bundle이 바뀌어 더 받을 필수 약관이 없어졌으면 화면 없이 통과.
+    // 앱이 kc_action으로 직접 요청했거나 판정이 그대로면 예전처럼 항상 화면을 보여준다
+    if (!terms.isEmpty()
+        && authSession.getClientNote(Constants.KC_ACTION) == null
+        && TermsEvaluation.isStale(authSession, bundle)
+        && TermsEvaluation.load(authSession, bundle, context.getUser(), client, store).isSatisfied()) {
+      context.getUser().removeRequiredAction(TermsRequiredActionFactory.PROVIDER_ID);
+      authSession.removeRequiredAction(TermsRequiredActionFactory.PROVIDER_ID);
+      context.success();
+      return;
+    }
+
+    Response challenge = termsForm(context, terms)
         .setAttribute("missing", List.of())
         .createForm("terms.ftl");
 
@@ -107,8 +126,7 @@ public class TermsRequiredActionProvider implements RequiredActionProvider {
     // Reject: 정책상 로그인 중단이 맞으면 failureChallenge를 써도 됨.
     // 여기서는 "같은 페이지에 에러 표시 + 더 진행 못하게"를 택함.
     if (ACTION_REJECT.equals(action)) {
-      Response challenge = context.form()
-          .setAttribute("terms", terms)
+      Response challenge = termsForm(context, terms)
           .setAttribute("missing", List.of())
           .setAttribute("errorKey", ERR_REJECTED)
           .createForm("terms.ftl");
@@ -127,8 +145,7 @@ public class TermsRequiredActionProvider implements RequiredActionProvider {
         .toList();
 
     if (!missingRequiredKeys.isEmpty()) {
-      Response challenge = context.form()
-          .setAttribute("terms", terms)
+      Response challenge = termsForm(context, terms)
           .setAttribute("missing", missingRequiredKeys)   // required만 내려줌(FTL 로직과 일치)
           .setAttribute("errorKey", ERR_REQUIRED_MISSING) // i18n key
           .createForm("terms.ftl");
@@ -137,15 +154,26 @@ public class TermsRequiredActionProvider implements RequiredActionProvider {
     }
 
     // store accepted for ALL checked terms (required + optional)
+    // 필수 약관은 이번 로그인 판정에서 미수락이었던 것만 쓴다 (이미 현재 version으로 수락한 건 다시 쓰지 않음)
+    TermsEvaluation evaluation =
+        TermsEvaluation.load(context.getAuthenticationSession(), bundle, user, client, store);
     Map<String, Term> byKey = terms.stream()
         .collect(Collectors.toMap(Term::key, t -> t, (a, b) -> a, LinkedHashMap::new));
 
+    List<Term> pending = new ArrayList<>();
     for (String k : accepted) {
       Term t = byKey.get(k);
-      if (t != null) {
-        store.markAccepted(user, client, t); // version|timestamp 저장
+      if (t == null) continue;
+      boolean notYet = t.required()
+          ? evaluation.missingRequired.contains(k)
+          : !store.isAccepted(user, client, t);
+      if (notYet) {
+        pending.add(t);
       }
     }
+    // 한 번에 저장: 시각 하나, 저장소별로 묶을 수 있는 만큼 묶어서 쓴다 (version|timestamp)
+    store.markAccepted(user, client, pending);
+    TermsEvaluation.markSatisfied(context.getAuthenticationSession(), bundle, user, client, store);
 
     // 디버깅용(문제 재발 시 원인 확정)
     LOG.debugf("TERMS processAction success client=%s user=%s accepted=%s",
@@ -158,6 +186,13 @@ public class TermsRequiredActionProvider implements RequiredActionProvider {
     context.success();
   }
 
+  // 약관 본문은 서버에서 받아 페이지에 넣는다 (브라우저가 term.url을 직접 요청하지 않음)
+  private LoginFormsProvider termsForm(RequiredActionContext context, List<Term> terms) {
+    return context.form()
+        .setAttribute("terms", terms)
+        .setAttribute("termContents", contentCache.contents(terms));
+  }
+
   private static String firstOrDefault(List<String> values, String def) {
     return (values == null || values.isEmpty() || values.get(0) == null || values.get(0).isBlank()) ? def : values.get(0);
   }
@@ -0,0 +1,570 @@
+package com.example.keycloak.terms;
+
+import com.example.keycloak.terms.TermsModels.Term;
+import com.example.keycloak.terms.TermsModels.TermsBundle;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.TypedQuery;
+import org.jboss.logging.Logger;
+import org.keycloak.cluster.ClusterProvider;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.ClientScopeModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.cache.infinispan.ClearCacheEvent;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * scope의 필수 약관 version이 바뀐 것(terms_sync_scopes.sh 등)을 timer로 찾아서, 로그인 전에 미리 처리한다.
+ *
+ * <ul>
+ *   <li>한 노드(ClusterProvider.executeIfNotExecuted): 모든 scope를 훑어서 terms_config 원문이 바뀐 scope를 다시
+ *       파싱하고 그 scope를 쓰는 client의 bundle을 만들어 둔다. 끝나면 다른 노드에 이벤트를 보낸다 (바뀐 게
+ *       있으면 {@value #EVENT_CHANGED}, 없으면 {@value #EVENT_SCANNED}). 이벤트를 받은 노드는 그 주기의 scan을
+ *       건너뛰고, {@value #EVENT_CHANGED}면 자기 캐시에서 원문이 다른 scope만 다시 채운다.</li>
+ *   <li>필수 약관 version이 올라간 scope마다 한 노드가: 그 scope를 쓰는 client에서 예전 필수 약관 집합으로 satisfied
+ *       digest가 기록된 유저를 id keyset 페이지로 읽어 required action을 걸어 둔다. 페이지마다 트랜잭션을 나누고
+ *       사이에 쉰다. 이미 required action이 있는 유저는 읽지 않는다.</li>
+ * </ul>
+ *
+ * <p>satisfied digest는 저장소마다 자리가 다르다 (legacy: attribute {@code terms.satisfied.<clientId>}, jpa:
+ * TERM_KEY {@value TermsAcceptanceStore#SATISFIED_KEY} row, compact: {@code terms_acceptance} 문서 안이라 문서를
+ * 읽어서 본다). compact/jpa에서도 아직 옮겨지지 않은 attribute는 같이 본다. digest가 없는 유저(digest 도입 전
+ * 수락, 아직 로그인 안 함)는 대상이 아니고 로그인 때 evaluateTriggers가 잡는다.
+ *
+ * <p>required action은 "다시 볼 필요가 있다"는 표시일 뿐이다. 판정은 로그인 때 evaluateTriggers가 그 client 기준으로
+ * 다시 하므로, 이미 만족한 client로 먼저 로그인하면 거기서 지워지고 올라간 client로 로그인할 때 다시 걸린다.
+ *
+ * <p>마지막으로 처리한 필수 약관 version은 scope attribute {@code terms_propagated}(JSON key → version)에 둔다.
+ * 처음 보는 scope는 기록만 하고 유저는 건드리지 않는다. 기록은 작업이 끝난 뒤에 쓰므로 중간에 멈추면 다음 scan에서
+ * 다시 돈다(이미 걸린 유저는 건너뛴다).
+ *
+ * <p>지표:
+ * <ul>
+ *   <li>terms.propagation.users (counter) — required action을 건 유저</li>
+ *   <li>terms.propagation.remaining (gauge) — 이 노드가 작업을 돌린 realm에서 아직 terms required action이 걸려 있는
+ *       유저 (다른 이유로 걸린 유저 포함). 0이 되면 그 realm은 추적을 멈춘다</li>
+ *   <li>terms.propagation.runs (counter, result=done|failed)</li>
+ * </ul>
+ */
+final class TermsVersionPropagator {
+
+  static final String TIMER_TASK_NAME = "terms-version-propagation";
+  static final String ATTR_PROPAGATED = "terms_propagated";
+  // 클러스터 이벤트 key. 내용은 key가 전부라 payload는 Keycloak에 등록된 빈 이벤트를 쓴다
+  static final String EVENT_CHANGED = "terms-propagation-changed";
+  static final String EVENT_SCANNED = "terms-propagation-scanned";
+
+  private static final Logger LOG = Logger.getLogger(TermsVersionPropagator.class);
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+  private static final String ATTR_TERMS_CONFIG = "terms_config";
+  private static final String SCAN_TASK_KEY = "terms-propagation-scan";
+  private static final int SCAN_TTL_SECONDS = 10 * 60;
+  private static final int RUN_TTL_SECONDS = 6 * 60 * 60;
+
+  // 이미 terms required action이 걸린 유저는 빼고 읽는다 (다시 돌 때도 같은 유저를 두 번 읽지 않음)
+  private static final String NOT_FLAGGED =
+      " and not exists (select ra.action from UserRequiredActionEntity ra where ra.user.id = %s"
+          + " and ra.action = :action)";
+  private static final String ATTRIBUTE_PAGE_QUERY =
+      "select a.user.id from UserAttributeEntity a"
+          + " where a.user.realmId = :realmId and a.name = :name and a.value <> :digest and a.user.id > :after"
+          + String.format(NOT_FLAGGED, "a.user.id")
+          + " order by a.user.id";
+  private static final String JPA_PAGE_QUERY =
+      "select t.userId from TermsAcceptanceEntity t"
+          + " where t.realmId = :realmId and t.clientId = :clientId and t.termKey = :name and t.version <> :digest"
+          + " and t.userId > :after"
+          + String.format(NOT_FLAGGED, "t.userId")
+          + " order by t.userId";
+  private static final String COMPACT_PAGE_QUERY =
+      "select a.user.id, a.value from UserAttributeEntity a"
+          + " where a.user.realmId = :realmId and a.name = :name and a.user.id > :after"
+          + String.format(NOT_FLAGGED, "a.user.id")
+          + " order by a.user.id";
+  private static final String FLAGGED_COUNT_QUERY =
+      "select count(ra) from UserRequiredActionEntity ra where ra.action = :action and ra.user.realmId = :realmId";
+
+  private final KeycloakSessionFactory factory;
+  private final TermsConfigResolver resolver;
+  private final String storeMode;
+  private final int pageSize;
+  private final long pauseMs;
+  private final long intervalMs;
+  // version 변경 작업과 재집계
+  private final ExecutorService worker;
+  // 다른 노드의 scan 이후 캐시 채우기. 긴 작업 뒤에 밀리지 않게 따로 둔다
+  private final ExecutorService warmer;
+
+  // scope id → 이 노드가 마지막으로 캐시를 채운 terms_config 원문
+  private final Map<String, String> warmed = new ConcurrentHashMap<>();
+  // 이 노드에서 실행 중/대기 중인 작업 (scope id)
+  private final Set<String> running = ConcurrentHashMap.newKeySet();
+  // realm id → 이 노드가 작업을 돌린 realm에서 마지막으로 센 flag 수
+  private final Map<String, Long> remainingByRealm = new ConcurrentHashMap<>();
+  private final AtomicBoolean warmQueued = new AtomicBoolean();
+  private final AtomicBoolean recountQueued = new AtomicBoolean();
+  // 클러스터에서 마지막 scan이 끝난 시각 (이 노드가 했거나 이벤트로 받음)
+  private volatile long lastScanAt;
+
+  private final Counter flaggedUsers;
+  private final Counter runsDone;
+  private final Counter runsFailed;
+
+  TermsVersionPropagator(
+      KeycloakSessionFactory factory,
+      TermsConfigResolver resolver,
+      String storeMode,
+      int pageSize,
+      long pauseMs,
+      long intervalMs,
+      MeterRegistry registry
+  ) {
+    this.factory = factory;
+    this.resolver = resolver;
+    this.storeMode = storeMode;
+    this.pageSize = Math.max(1, pageSize);
+    this.pauseMs = Math.max(0, pauseMs);
+    this.intervalMs = intervalMs;
+    this.worker = Executors.newSingleThreadExecutor(r -> {
+      Thread t = new Thread(r, "terms-propagation");
+      t.setDaemon(true);
+      return t;
+    });
+    this.warmer = Executors.newSingleThreadExecutor(r -> {
+      Thread t = new Thread(r, "terms-propagation-warm");
+      t.setDaemon(true);
+      return t;
+    });
+
+    this.flaggedUsers = Counter.builder("terms.propagation.users")
+        .description("Users flagged with the terms required action after a required version bump")
+        .register(registry);
+    this.runsDone = runsCounter(registry, "done");
+    this.runsFailed = runsCounter(registry, "failed");
+    Gauge.builder("terms.propagation.remaining", remainingByRealm,
+            m -> m.values().stream().mapToLong(Long::longValue).sum())
+        .description("Users still flagged with the terms required action in realms with a recent version bump")
+        .register(registry);
+  }
+
+  private static Counter runsCounter(MeterRegistry registry, String result) {
+    return Counter.builder("terms.propagation.runs")
+        .description("Required term version changes processed")
+        .tag("result", result)
+        .register(registry);
+  }
+
+  /**
+   * postInit에서 한 번. 다른 노드가 scan을 마쳤다는 이벤트를 받는다.
+   */
+  void listen(ClusterProvider cluster) {
+    cluster.registerListener(EVENT_SCANNED, event -> lastScanAt = System.currentTimeMillis());
+    cluster.registerListener(EVENT_CHANGED, event -> {
+      lastScanAt = System.currentTimeMillis();
+      if (warmQueued.compareAndSet(false, true)) {
+        warmer.submit(() -> {
+          warmQueued.set(false);
+          try {
+            KeycloakModelUtils.runJobInTransaction(factory, session -> scan(session, false));
+          } catch (RuntimeException e) {
+            LOG.warnf(e, "TERMS cache warm-up failed");
+          }
+        });
+      }
+    });
+  }
+
+  /**
+   * timer tick (노드마다, timer 트랜잭션 안). 주기의 절반 안에 다른 노드가 scan했으면 건너뛰고, 아니면 클러스터에서
+   * 한 노드만 scan한다. 기록/유저 처리는 worker로 넘긴다.
+   */
+  void tick(KeycloakSession session) {
+    if (System.currentTimeMillis() - lastScanAt >= intervalMs / 2) {
+      ClusterProvider cluster = session.getProvider(ClusterProvider.class);
+      if (cluster == null) {
+        lastScanAt = System.currentTimeMillis();
+        scan(session, true);
+      } else {
+        cluster.executeIfNotExecuted(SCAN_TASK_KEY, SCAN_TTL_SECONDS, () -> {
+          lastScanAt = System.currentTimeMillis();
+          boolean changed = scan(session, true);
+          cluster.notify(changed ? EVENT_CHANGED : EVENT_SCANNED, ClearCacheEvent.getInstance(), true);
+          return null;
+        });
+      }
+    }
+
+    if (!remainingByRealm.isEmpty() && recountQueued.compareAndSet(false, true)) {
+      worker.submit(() -> {
+        recountQueued.set(false);
+        recount();
+      });
+    }
+  }
+
+  void invalidate(String scopeId) {
+    warmed.remove(scopeId);
+  }
+
+  void forgetRealm(String realmId) {
+    // warmed는 realm을 모르니 비우고 다음 scan에서 다시 채운다
+    warmed.clear();
+    remainingByRealm.remove(realmId);
+  }
+
+  void close() {
+    worker.shutdownNow();
+    warmer.shutdownNow();
+    warmed.clear();
+    remainingByRealm.clear();
+  }
+
+  // 원문이 바뀐 scope의 캐시를 채운다. propagate면 필수 version이 바뀐 scope의 작업도 넘긴다. 채운 게 있으면 true
+  private boolean scan(KeycloakSession session, boolean propagate) {
+    boolean[] changed = {false};
+    session.realms().getRealmsStream().forEach(realm -> {
+      List<ClientModel> clients = null;
+
+      for (ClientScopeModel scope : (Iterable<ClientScopeModel>) realm.getClientScopesStream()::iterator) {
+        String raw = scope.getAttribute(ATTR_TERMS_CONFIG);
+        if (raw == null || raw.isBlank()) continue;
+
+        List<Term> terms;
+        try {
+          terms = resolver.precompile(scope);
+        } catch (IllegalStateException e) {
+          // 설정 오류는 TermsConfigValidator/로그인 경로가 보고한다
+          continue;
+        }
+
+        if (!raw.equals(warmed.get(scope.getId()))) {
+          if (clients == null) clients = realm.getClientsStream().toList();
+          warm(scope, clients);
+          warmed.put(scope.getId(), raw);
+          changed[0] = true;
+        }
+        if (!propagate) continue;
+
+        Map<String, String> current = requiredVersions(terms);
+        Map<String, String> propagated = readPropagated(scope);
+        if (current.equals(propagated)) continue;
+
+        // 처음 보는 scope(propagated == null)는 bumped가 비어 있고 기록만 한다
+        Map<String, String> bumped = new TreeMap<>();
+        if (propagated != null) {
+          current.forEach((key, version) -> {
+            if (!version.equals(propagated.get(key))) bumped.put(key, version);
+          });
+        }
+
+        if (running.add(scope.getId())) {
+          String realmId = realm.getId();
+          String scopeId = scope.getId();
+          String state = writeState(current);
+          worker.submit(() -> {
+            try {
+              runOnce(realmId, scopeId, state, bumped);
+            } finally {
+              running.remove(scopeId);
+            }
+          });
+        }
+      }
+    });
+    return changed[0];
+  }
+
+  private void warm(ClientScopeModel scope, List<ClientModel> clients) {
+    for (ClientModel client : clients) {
+      if (!usesScope(client, scope)) continue;
+      try {
+        resolver.resolve(client);
+      } catch (IllegalStateException e) {
+        // 병합 오류도 validator/로그인 경로가 보고한다
+      }
+    }
+  }
+
+  // 같은 (scope, 목표 상태)는 클러스터에서 한 노드만 처리한다
+  private void runOnce(String realmId, String scopeId, String state, Map<String, String> bumped) {
+    String taskKey = "terms-propagation::" + scopeId + "::" + Integer.toHexString(state.hashCode());
+    try (KeycloakSession session = factory.create()) {
+      ClusterProvider cluster = session.getProvider(ClusterProvider.class);
+      if (cluster == null) {
+        propagate(realmId, scopeId, state, bumped);
+        return;
+      }
+      cluster.executeIfNotExecuted(taskKey, RUN_TTL_SECONDS, () -> {
+        propagate(realmId, scopeId, state, bumped);
+        return null;
+      });
+    } catch (RuntimeException e) {
+      runsFailed.increment();
+      LOG.errorf(e, "TERMS propagation failed scope=%s", scopeId);
+    }
+  }
+
+  private void propagate(String realmId, String scopeId, String state, Map<String, String> bumped) {
+    // 대상 client 계산. 다른 노드가 이미 같은 상태를 썼으면 아무것도 하지 않는다
+    List<Target> targets = KeycloakModelUtils.runJobInTransactionWithResult(factory, session -> {
+      RealmModel realm = session.realms().getRealm(realmId);
+      ClientScopeModel scope = realm == null ? null : realm.getClientScopeById(scopeId);
+      if (scope == null || state.equals(scope.getAttribute(ATTR_PROPAGATED))) return null;
+
+      if (bumped.isEmpty()) {
+        scope.setAttribute(ATTR_PROPAGATED, state);
+        return List.of();
+      }
+      return affectedClients(realm, scope, bumped);
+    });
+    if (targets == null || bumped.isEmpty()) return;
+
+    long started = System.currentTimeMillis();
+    AtomicInteger flagged = new AtomicInteger();
+    LOG.infof("TERMS propagation start realm=%s scope=%s bumped=%s clients=%d",
+        realmId, scopeId, bumped, targets.size());
+    try {
+      for (Target target : targets) {
+        String name = LegacyTermsAcceptanceStore.SATISFIED_PREFIX + target.clientId;
+        flagPages(realmId, flagged, (session, after) -> idPage(
+            em(session).createQuery(ATTRIBUTE_PAGE_QUERY, String.class)
+                .setParameter("name", name)
+                .setParameter("digest", target.requiredDigest),
+            realmId, after));
+        if (TermsAcceptanceStore.MODE_JPA.equals(storeMode)) {
+          flagPages(realmId, flagged, (session, after) -> idPage(
+              em(session).createQuery(JPA_PAGE_QUERY, String.class)
+                  .setParameter("clientId", target.clientId)
+                  .setParameter("name", TermsAcceptanceStore.SATISFIED_KEY)
+                  .setParameter("digest", target.requiredDigest),
+              realmId, after));
+        }
+      }
+      if (TermsAcceptanceStore.MODE_COMPACT.equals(storeMode)) {
+        flagPages(realmId, flagged, (session, after) -> compactPage(session, realmId, after, targets));
+      }
+
+      KeycloakModelUtils.runJobInTransaction(factory, session -> {
+        RealmModel realm = session.realms().getRealm(realmId);
+        ClientScopeModel scope = realm == null ? null : realm.getClientScopeById(scopeId);
+        if (scope != null) {
+          scope.setAttribute(ATTR_PROPAGATED, state);
+        }
+      });
+      runsDone.increment();
+      LOG.infof("TERMS propagation done realm=%s scope=%s flagged=%d in %dms",
+          realmId, scopeId, flagged.get(), System.currentTimeMillis() - started);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      runsFailed.increment();
+      LOG.warnf("TERMS propagation interrupted realm=%s scope=%s flagged=%d", realmId, scopeId, flagged.get());
+      return;
+    }
+
+    if (flagged.get() > 0) {
+      remainingByRealm.putIfAbsent(realmId, (long) flagged.get());
+      recount();
+    }
+  }
+
+  // 대상 client: 이 scope를 쓰고, 병합 결과에서 올라간 version을 실제로 쓰는 client (다른 scope가 우선이면 제외)
+  private List<Target> affectedClients(RealmModel realm, ClientScopeModel scope, Map<String, String> bumped) {
+    List<Target> result = new ArrayList<>();
+    realm.getClientsStream().filter(c -> usesScope(c, scope)).forEach(client -> {
+      TermsBundle bundle;
+      try {
+        bundle = resolver.resolve(client);
+      } catch (IllegalStateException e) {
+        return;
+      }
+      boolean affected = bundle.requiredDigest() != null && bundle.terms().stream()
+          .anyMatch(t -> t.required() && t.version().equals(bumped.get(t.key())));
+      if (affected) {
+        result.add(new Target(client.getClientId(), bundle.requiredDigest()));
+      }
+    });
+    return result;
+  }
+
+  /**
+   * keyset 페이지마다 한 트랜잭션에서 대상 유저에 required action을 건다.
+   */
+  private void flagPages(String realmId, AtomicInteger flagged, PageReader reader) throws InterruptedException {
+    String after = "";
+    while (true) {
+      String from = after;
+      Page page = KeycloakModelUtils.runJobInTransactionWithResult(factory, session -> {
+        RealmModel realm = session.realms().getRealm(realmId);
+        if (realm == null) return Page.EMPTY;
+        Page p = reader.read(session, from);
+        for (String id : p.userIds) {
+          UserModel user = session.users().getUserById(realm, id);
+          if (user == null) continue;
+          user.addRequiredAction(TermsRequiredActionFactory.PROVIDER_ID);
+          flagged.incrementAndGet();
+          flaggedUsers.increment();
+        }
+        return p;
+      });
+
+      if (page.scanned < pageSize) return;
+      after = page.last;
+      if (pauseMs > 0) {
+        TimeUnit.MILLISECONDS.sleep(pauseMs);
+      }
+    }
+  }
+
+  private Page idPage(TypedQuery<String> query, String realmId, String after) {
+    List<String> ids = query
+        .setParameter("realmId", realmId)
+        .setParameter("after", after)
+        .setParameter("action", TermsRequiredActionFactory.PROVIDER_ID)
+        .setMaxResults(pageSize)
+        .getResultList();
+    return new Page(ids, ids.size(), ids.isEmpty() ? after : ids.get(ids.size() - 1));
+  }
+
+  // compact 문서는 DB에서 거를 수 없어서 문서가 있는 유저를 페이지로 읽고 client 항목의 satisfied digest를 본다
+  private Page compactPage(KeycloakSession session, String realmId, String after, List<Target> targets) {
+    List<Object[]> rows = em(session).createQuery(COMPACT_PAGE_QUERY, Object[].class)
+        .setParameter("realmId", realmId)
+        .setParameter("name", CompactTermsAcceptanceStore.ATTRIBUTE)
+        .setParameter("after", after)
+        .setParameter("action", TermsRequiredActionFactory.PROVIDER_ID)
+        .setMaxResults(pageSize)
+        .getResultList();
+    List<String> stale = new ArrayList<>();
+    for (Object[] row : rows) {
+      if (isStaleCompact((String) row[1], targets)) stale.add((String) row[0]);
+    }
+    return new Page(stale, rows.size(), rows.isEmpty() ? after : (String) rows.get(rows.size() - 1)[0]);
+  }
+
+  private static boolean isStaleCompact(String raw, List<Target> targets) {
+    if (raw == null || raw.isBlank()) return false;
+    CompactTermsAcceptanceStore.Document doc;
+    try {
+      doc = MAPPER.readValue(raw, CompactTermsAcceptanceStore.Document.class);
+    } catch (Exception e) {
+      // 깨진 문서는 로그인 때 빈 문서로 보고 다시 판정한다
+      return false;
+    }
+    if (doc.clients == null) return false;
+    for (Target target : targets) {
+      Map<String, String> accepted = doc.clients.get(target.clientId);
+      String digest = accepted == null ? null : accepted.get(TermsAcceptanceStore.SATISFIED_KEY);
+      if (digest != null && !digest.equals(target.requiredDigest)) return true;
+    }
+    return false;
+  }
+
+  private void recount() {
+    remainingByRealm.keySet().forEach(realmId -> {
+      long n;
+      try {
+        n = KeycloakModelUtils.runJobInTransactionWithResult(factory, session ->
+            em(session).createQuery(FLAGGED_COUNT_QUERY, Long.class)
+                .setParameter("action", TermsRequiredActionFactory.PROVIDER_ID)
+                .setParameter("realmId", realmId)
+                .getSingleResult());
+      } catch (RuntimeException e) {
+        LOG.warnf(e, "TERMS propagation recount failed realm=%s", realmId);
+        return;
+      }
+      if (n == 0) {
+        remainingByRealm.remove(realmId);
+        LOG.infof("TERMS re-consent complete realm=%s", realmId);
+      } else {
+        remainingByRealm.replace(realmId, n);
+      }
+    });
+  }
+
+  private static boolean usesScope(ClientModel client, ClientScopeModel scope) {
+    return client.getClientScopes(true).containsKey(scope.getName())
+        || client.getClientScopes(false).containsKey(scope.getName());
+  }
+
+  private static Map<String, String> requiredVersions(List<Term> terms) {
+    Map<String, String> versions = new TreeMap<>();
+    for (Term t : terms) {
+      if (t.required()) versions.put(t.key(), t.version());
+    }
+    return versions;
+  }
+
+  private static Map<String, String> readPropagated(ClientScopeModel scope) {
+    String raw = scope.getAttribute(ATTR_PROPAGATED);
+    if (raw == null || raw.isBlank()) return null;
+    try {
+      return MAPPER.readValue(raw, new TypeReference<TreeMap<String, String>>() {});
+    } catch (Exception e) {
+      LOG.warnf("Invalid %s attribute on scope=%s, resetting: %s", ATTR_PROPAGATED, scope.getName(), e.getMessage());
+      return null;
+    }
+  }
+
+  private static String writeState(Map<String, String> versions) {
+    try {
+      return MAPPER.writeValueAsString(versions);
+    } catch (Exception e) {
+      throw new IllegalStateException("failed to write " + ATTR_PROPAGATED, e);
+    }
+  }
+
+  private static EntityManager em(KeycloakSession session) {
+    return session.getProvider(JpaConnectionProvider.class).getEntityManager();
+  }
+
+  private interface PageReader {
+    // after 다음 id부터 한 페이지 (같은 트랜잭션)
+    Page read(KeycloakSession session, String after);
+  }
+
+  private static final class Page {
+    static final Page EMPTY = new Page(List.of(), 0, null);
+
+    // required action을 걸 유저
+    final List<String> userIds;
+    // 이번 페이지에서 읽은 row 수와 마지막 id (다음 페이지 cursor)
+    final int scanned;
+    final String last;
+
+    Page(List<String> userIds, int scanned, String last) {
+      this.userIds = userIds;
+      this.scanned = scanned;
+      this.last = last;
+    }
+  }
+
+  private static final class Target {
+    final String clientId;
+    final String requiredDigest;
+
+    Target(String clientId, String requiredDigest) {
+      this.clientId = clientId;
+      this.requiredDigest = requiredDigest;
+    }
+  }
+}
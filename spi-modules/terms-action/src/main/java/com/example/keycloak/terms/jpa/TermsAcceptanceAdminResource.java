@@ -0,0 +1,146 @@
+package com.example.keycloak.terms.jpa;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.TypedQuery;
+import jakarta.ws.rs.BadRequestException;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.NotAuthorizedException;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.core.MediaType;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.services.managers.AppAuthManager;
+import org.keycloak.services.managers.AuthenticationManager;
+import org.keycloak.services.resources.admin.AdminAuth;
+import org.keycloak.services.resources.admin.fgap.AdminPermissions;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 재동의 대상 조회: {@code GET /realms/{realm}/terms-acceptance/missing?clientId=&termKey=&version=&after=&max=}.
+ *
+ * <p>realm의 일반 유저(service account 제외) 중 TERMS_ACCEPTANCE에 (clientId, termKey, version) row가 없는 유저를
+ * id 순으로 돌려준다. 페이지는 offset이 아니라 keyset(마지막 id 다음부터)이라 뒤쪽 페이지도 비용이 같다.
+ * 응답의 {@code next}를 다음 요청의 {@code after}로 넘기고, null이면 끝이다.
+ *
+ * <p>TERMS_ACCEPTANCE에 있는 기록만 보므로 acceptanceStore=jpa에서만 의미가 있고, 아직 legacy key에서 옮겨지지
+ * 않은(로그인하지 않은) 유저는 미수락으로 나온다. 호출자는 같은 realm의 bearer token과 view-users 권한이 필요하다.
+ */
+public class TermsAcceptanceAdminResource {
+
+  static final int DEFAULT_MAX = 100;
+  static final int MAX_MAX = 1000;
+
+  private static final String MISSING_WHERE =
+      " from UserEntity u where u.realmId = :realmId and u.serviceAccountClientLink is null"
+          + " and not exists (select t.id from TermsAcceptanceEntity t where t.userId = u.id"
+          + " and t.clientId = :clientId and t.termKey = :termKey and t.version = :version)";
+
+  private final KeycloakSession session;
+
+  public TermsAcceptanceAdminResource(KeycloakSession session) {
+    this.session = session;
+  }
+
+  @GET
+  @Path("missing")
+  @Produces(MediaType.APPLICATION_JSON)
+  public MissingPage missing(
+      @QueryParam("clientId") String clientId,
+      @QueryParam("termKey") String termKey,
+      @QueryParam("version") String version,
+      @QueryParam("after") String after,
+      @QueryParam("max") Integer max
+  ) {
+    RealmModel realm = requireViewUsers();
+    requireParams(clientId, termKey, version);
+    int limit = max == null ? DEFAULT_MAX : Math.max(1, Math.min(max, MAX_MAX));
+
+    TypedQuery<Object[]> query = em().createQuery(
+            "select u.id, u.username" + MISSING_WHERE
+                + (after == null || after.isBlank() ? "" : " and u.id > :after")
+                + " order by u.id",
+            Object[].class)
+        .setParameter("realmId", realm.getId())
+        .setParameter("clientId", clientId)
+        .setParameter("termKey", termKey)
+        .setParameter("version", version)
+        // 한 건 더 읽어서 다음 페이지가 있는지 본다
+        .setMaxResults(limit + 1);
+    if (after != null && !after.isBlank()) {
+      query.setParameter("after", after);
+    }
+
+    List<Object[]> rows = query.getResultList();
+    MissingPage page = new MissingPage();
+    for (int i = 0; i < Math.min(rows.size(), limit); i++) {
+      page.users.add(new MissingUser((String) rows.get(i)[0], (String) rows.get(i)[1]));
+    }
+    if (rows.size() > limit) {
+      page.next = page.users.get(limit - 1).id;
+    }
+    return page;
+  }
+
+  @GET
+  @Path("missing/count")
+  @Produces(MediaType.APPLICATION_JSON)
+  public long missingCount(
+      @QueryParam("clientId") String clientId,
+      @QueryParam("termKey") String termKey,
+      @QueryParam("version") String version
+  ) {
+    RealmModel realm = requireViewUsers();
+    requireParams(clientId, termKey, version);
+    return em().createQuery("select count(u)" + MISSING_WHERE, Long.class)
+        .setParameter("realmId", realm.getId())
+        .setParameter("clientId", clientId)
+        .setParameter("termKey", termKey)
+        .setParameter("version", version)
+        .getSingleResult();
+  }
+
+  private RealmModel requireViewUsers() {
+    RealmModel realm = session.getContext().getRealm();
+    AuthenticationManager.AuthResult auth = new AppAuthManager.BearerTokenAuthenticator(session).authenticate();
+    if (auth == null) {
+      throw new NotAuthorizedException("Bearer");
+    }
+    AdminAuth adminAuth = new AdminAuth(realm, auth.getToken(), auth.getUser(), auth.getClient());
+    AdminPermissions.evaluator(session, realm, adminAuth).users().requireView();
+    return realm;
+  }
+
+  private static void requireParams(String clientId, String termKey, String version) {
+    if (isBlank(clientId) || isBlank(termKey) || isBlank(version)) {
+      throw new BadRequestException("clientId, termKey and version are required");
+    }
+  }
+
+  private static boolean isBlank(String s) {
+    return s == null || s.isBlank();
+  }
+
+  private EntityManager em() {
+    return session.getProvider(JpaConnectionProvider.class).getEntityManager();
+  }
+
+  public static final class MissingPage {
+    public List<MissingUser> users = new ArrayList<>();
+    public String next;
+  }
+
+  public static final class MissingUser {
+    public String id;
+    public String username;
+
+    MissingUser(String id, String username) {
+      this.id = id;
+      this.username = username;
+    }
+  }
+}
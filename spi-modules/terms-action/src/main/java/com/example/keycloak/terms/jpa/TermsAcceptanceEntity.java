@@ -0,0 +1,78 @@
+package com.example.keycloak.terms.jpa;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.Index;
+import jakarta.persistence.NamedQueries;
+import jakarta.persistence.NamedQuery;
+import jakarta.persistence.Table;
+import jakarta.persistence.UniqueConstraint;
+
+/**
+ * 유저/client/term 당 한 row. 스키마는 META-INF/terms-acceptance-changelog.xml(Liquibase)이 만든다.
+ *
+ * <p>CLIENT_ID는 legacy attribute key와 같은 client의 clientId(내부 UUID 아님)다.
+ */
+@Entity
+@Table(
+    name = "TERMS_ACCEPTANCE",
+    uniqueConstraints = @UniqueConstraint(
+        name = "UK_TERMS_ACCEPTANCE_USER_TERM", columnNames = {"USER_ID", "CLIENT_ID", "TERM_KEY"}),
+    indexes = @Index(
+        name = "IDX_TERMS_ACCEPTANCE_TERM", columnList = "REALM_ID, CLIENT_ID, TERM_KEY, VERSION")
+)
+@NamedQueries({
+    @NamedQuery(name = "termsAcceptance.byUserAndClient",
+        query = "select t from TermsAcceptanceEntity t where t.userId = :userId and t.clientId = :clientId"),
+    @NamedQuery(name = "termsAcceptance.deleteByUser",
+        query = "delete from TermsAcceptanceEntity t where t.userId = :userId"),
+    @NamedQuery(name = "termsAcceptance.deleteByRealm",
+        query = "delete from TermsAcceptanceEntity t where t.realmId = :realmId")
+})
+public class TermsAcceptanceEntity {
+
+  @Id
+  @Column(name = "ID", length = 36)
+  private String id;
+
+  @Column(name = "REALM_ID", length = 36, nullable = false)
+  private String realmId;
+
+  @Column(name = "USER_ID", length = 36, nullable = false)
+  private String userId;
+
+  @Column(name = "CLIENT_ID", length = 255, nullable = false)
+  private String clientId;
+
+  @Column(name = "TERM_KEY", length = 255, nullable = false)
+  private String termKey;
+
+  @Column(name = "VERSION", length = 255, nullable = false)
+  private String version;
+
+  // epoch ms
+  @Column(name = "ACCEPTED_AT", nullable = false)
+  private long acceptedAt;
+
+  public String getId() { return id; }
+  public void setId(String id) { this.id = id; }
+
+  public String getRealmId() { return realmId; }
+  public void setRealmId(String realmId) { this.realmId = realmId; }
+
+  public String getUserId() { return userId; }
+  public void setUserId(String userId) { this.userId = userId; }
+
+  public String getClientId() { return clientId; }
+  public void setClientId(String clientId) { this.clientId = clientId; }
+
+  public String getTermKey() { return termKey; }
+  public void setTermKey(String termKey) { this.termKey = termKey; }
+
+  public String getVersion() { return version; }
+  public void setVersion(String version) { this.version = version; }
+
+  public long getAcceptedAt() { return acceptedAt; }
+  public void setAcceptedAt(long acceptedAt) { this.acceptedAt = acceptedAt; }
+}
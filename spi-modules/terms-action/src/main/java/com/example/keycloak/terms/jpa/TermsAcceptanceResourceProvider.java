@@ -0,0 +1,20 @@
+package com.example.keycloak.terms.jpa;
+
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.services.resource.RealmResourceProvider;
+
+public class TermsAcceptanceResourceProvider implements RealmResourceProvider {
+
+  private final KeycloakSession session;
+
+  public TermsAcceptanceResourceProvider(KeycloakSession session) {
+    this.session = session;
+  }
+
+  @Override
+  public Object getResource() {
+    return new TermsAcceptanceAdminResource(session);
+  }
+
+  @Override public void close() {}
+}
@@ -0,0 +1,27 @@
+package com.example.keycloak.terms.jpa;
+
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.services.resource.RealmResourceProvider;
+import org.keycloak.services.resource.RealmResourceProviderFactory;
+
+public class TermsAcceptanceResourceProviderFactory implements RealmResourceProviderFactory {
+
+  // URL path: /realms/{realm}/terms-acceptance
+  public static final String PROVIDER_ID = "terms-acceptance";
+
+  @Override
+  public String getId() {
+    return PROVIDER_ID;
+  }
+
+  @Override
+  public RealmResourceProvider create(KeycloakSession session) {
+    return new TermsAcceptanceResourceProvider(session);
+  }
+
+  @Override public void init(Config.Scope config) {}
+  @Override public void postInit(KeycloakSessionFactory factory) {}
+  @Override public void close() {}
+}
@@ -0,0 +1,25 @@
+package com.example.keycloak.terms.jpa;
+
+import org.keycloak.connections.jpa.entityprovider.JpaEntityProvider;
+
+import java.util.List;
+
+public class TermsJpaEntityProvider implements JpaEntityProvider {
+
+  @Override
+  public List<Class<?>> getEntities() {
+    return List.of(TermsAcceptanceEntity.class);
+  }
+
+  @Override
+  public String getChangelogLocation() {
+    return "META-INF/terms-acceptance-changelog.xml";
+  }
+
+  @Override
+  public String getFactoryId() {
+    return TermsJpaEntityProviderFactory.PROVIDER_ID;
+  }
+
+  @Override public void close() {}
+}
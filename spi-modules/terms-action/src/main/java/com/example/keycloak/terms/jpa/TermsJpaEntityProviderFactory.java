@@ -0,0 +1,51 @@
+package com.example.keycloak.terms.jpa;
+
+import org.keycloak.Config;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.connections.jpa.entityprovider.JpaEntityProvider;
+import org.keycloak.connections.jpa.entityprovider.JpaEntityProviderFactory;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+public class TermsJpaEntityProviderFactory implements JpaEntityProviderFactory {
+
+  public static final String PROVIDER_ID = "terms-acceptance";
+
+  private static final JpaEntityProvider PROVIDER = new TermsJpaEntityProvider();
+
+  @Override
+  public String getId() {
+    return PROVIDER_ID;
+  }
+
+  @Override
+  public JpaEntityProvider create(KeycloakSession session) {
+    return PROVIDER;
+  }
+
+  @Override public void init(Config.Scope config) {}
+
+  @Override
+  public void postInit(KeycloakSessionFactory factory) {
+    // USER_ID/REALM_ID에 FK를 걸지 않았으니 삭제 이벤트에서 같은 TX로 지운다
+    factory.register(event -> {
+      if (event instanceof UserModel.UserRemovedEvent) {
+        UserModel.UserRemovedEvent e = (UserModel.UserRemovedEvent) event;
+        e.getKeycloakSession().getProvider(JpaConnectionProvider.class).getEntityManager()
+            .createNamedQuery("termsAcceptance.deleteByUser")
+            .setParameter("userId", e.getUser().getId())
+            .executeUpdate();
+      } else if (event instanceof RealmModel.RealmRemovedEvent) {
+        RealmModel.RealmRemovedEvent e = (RealmModel.RealmRemovedEvent) event;
+        e.getKeycloakSession().getProvider(JpaConnectionProvider.class).getEntityManager()
+            .createNamedQuery("termsAcceptance.deleteByRealm")
+            .setParameter("realmId", e.getRealm().getId())
+            .executeUpdate();
+      }
+    });
+  }
+
+  @Override public void close() {}
+}
@@ -34,59 +34,6 @@
     hint.textContent = "Done. You can now accept.";
   }
 
-  function escapeHtml(str) {
-    return String(str)
-      .replaceAll("&", "&amp;")
-      .replaceAll("<", "&lt;")
-      .replaceAll(">", "&gt;")
-      .replaceAll('"', "&quot;")
-      .replaceAll("'", "&#039;");
-  }
-
-  async function loadExternal(termEl) {
-    const url = termEl.getAttribute("data-url") || "";
-    if (!url) return;
-
-    const box = termEl.querySelector('[data-scrollbox="true"]');
-    const content = termEl.querySelector("[data-content]");
-    if (!box || !content) return;
-
-    try {
-      const resp = await fetch(url, {
-        method: "GET",
-        credentials: "omit",
-        cache: "no-store"
-      });
-
-      if (!resp.ok) {
-        throw new Error("HTTP " + resp.status);
-      }
-
-      const text = await resp.text();
-
-      content.innerHTML =
-        "<pre>" + escapeHtml(text) + "</pre>";
-
-      box.setAttribute("aria-busy", "false");
-      setPill(termEl, "load", "Loaded", false);
-
-      const isRequired = termEl.getAttribute("data-required") === "true";
-      const cb = termEl.querySelector(".terms-checkbox");
-
-      if (!cb || cb.checked || !isRequired) return;
-
-      if (box.scrollHeight <= box.clientHeight + 2) {
-        cb.disabled = false;
-        setHintOk(termEl);
-        setPill(termEl, "gate", "Ready", false);
-      }
-    } catch (e) {
-      box.setAttribute("aria-busy", "false");
-      content.textContent = "Failed to load terms content. Please open 'View details'.";
-      setPill(termEl, "load", "Load failed", true);
-    }
-  }
-
   function bindGate(termEl) {
     const isRequired = termEl.getAttribute("data-required") === "true";
     if (!isRequired) return;
@@ -95,7 +42,8 @@
     const box = termEl.querySelector('[data-scrollbox="true"]');
     if (!cb || !box) return;
 
-    if (cb.checked) {
+    // 본문은 서버가 페이지에 넣어 준다. 스크롤할 게 없으면(짧은 본문, 불러오기 실패) 바로 열어 둔다
+    if (cb.checked || box.scrollHeight <= box.clientHeight + 2) {
       cb.disabled = false;
       setHintOk(termEl);
       setPill(termEl, "gate", "Ready", false);
@@ -115,10 +63,7 @@
   }
 
   const terms = form.querySelectorAll(".term-card[data-term-key]");
-  terms.forEach((termEl) => {
-    loadExternal(termEl);
-    bindGate(termEl);
-  });
+  terms.forEach(bindGate);
 
   form.addEventListener("change", (e) => {
     const t = e.target;
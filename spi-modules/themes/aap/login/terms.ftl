@@ -2,8 +2,9 @@
      Terms & Conditions (Multi) – Required Action (Browser)
      Features:
        - Variable sections based on `terms` list
-       - External content fetched from term.url
-       - Required items: checkbox enabled only after content loaded + scrolled to bottom
+       - Term content fetched/cached server-side (`termContents`, key → text),
+         rendered inline (no browser request to term.url)
+       - Required items: checkbox enabled only after scrolled to bottom
        - Accept button enabled only when all required are checked
        - AAP logo applied to top area
      ========================================================= -->
@@ -51,6 +52,7 @@
               <#assign termKey = (term.key())!"" >
               <#assign termTitle = (term.title())!termKey >
               <#assign termUrl = (term.url())!"" >
+              <#assign termContent = (termContents[termKey])!"" >
               <#assign isRequired = (term.required())!false >
               <#assign isPreChecked = (missing?? && !missing?seq_contains(termKey)) >
 
@@ -59,7 +61,6 @@
                 role="listitem"
                 data-term-key="${termKey}"
                 data-required="${isRequired?string('true','false')}"
-                data-url="${termUrl}"
                 data-prechecked="${isPreChecked?string('true','false')}">
 
                 <div class="term-head">
@@ -104,17 +105,24 @@
                   <div
                     class="term-content"
                     data-scrollbox="true"
-                    aria-busy="true"
                     tabindex="0"
                     aria-label="${termTitle}">
                     <div class="term-content-inner" data-content>
-                      ${msg("loading","Loading...")}
+                      <#if termContent?has_content>
+                        <pre>${termContent}</pre>
+                      <#else>
+                        ${msg("statusLoadFailedDetail","Failed to load terms content. Please open 'View details'.")}
+                      </#if>
                     </div>
                     <div class="term-fade"></div>
                   </div>
 
                   <div class="term-status">
-                    <span class="pill" data-pill="load">${msg("statusLoading","Loading terms")}</span>
+                    <#if termContent?has_content>
+                      <span class="pill" data-pill="load">${msg("statusLoaded","Loaded")}</span>
+                    <#else>
+                      <span class="pill pill-warn" data-pill="load">${msg("statusLoadFailed","Load failed")}</span>
+                    </#if>
                     <#if isRequired && !isPreChecked>
                       <span class="pill pill-warn" data-pill="gate">${msg("statusScroll","Scroll required")}</span>
                     </#if>
@@ -0,0 +1,21 @@
+package com.example.keycloak.userinfosync;
+
+import org.keycloak.models.RealmModel;
+
+public class DefaultUserInfoSyncProvider implements UserInfoSyncProvider {
+
+  private final UserInfoSyncProviderFactory runtime;
+
+  public DefaultUserInfoSyncProvider(UserInfoSyncProviderFactory runtime) {
+    this.runtime = runtime;
+  }
+
+  @Override
+  public boolean requestUserSync(RealmModel realm, String userId, boolean invalidateSessions) {
+    return runtime.requestUserSync(realm, userId, invalidateSessions);
+  }
+
+  @Override
+  public void close() {
+  }
+}
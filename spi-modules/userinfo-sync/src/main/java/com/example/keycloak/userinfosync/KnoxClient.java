@@ -1,5 +1,10 @@
 package com.example.keycloak.userinfosync;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URI;
 import java.net.URLEncoder;
 import java.net.http.HttpClient;
@@ -8,42 +13,51 @@ import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 
+/**
+ * 노드에 하나만 만들어서 모든 realm/run이 공유한다 (HttpClient 커넥션 풀 재사용). timeout/resultType/retry 같은
+ * realm별 값은 요청마다 cfg로 받는다.
+ */
 public class KnoxClient {
   private final HttpClient http;
   private final String baseUrl;
   private final String systemId;
   private final String bearerToken;
-  private final int timeoutMs;
-  private final String resultType;
+  private final SyncMetrics metrics;
 
-  public KnoxClient(UserInfoSyncRealmConfig cfg) {
+  public KnoxClient(int connectTimeoutMs, SyncMetrics metrics) {
+    this.metrics = metrics;
     this.baseUrl = requireEnv("KNOX_API_URL");
     this.systemId = requireEnv("KNOX_SYSTEM_ID");
     this.bearerToken = requireEnv("KNOX_API_TOKEN");
-    this.timeoutMs = cfg.httpTimeoutMs;
-    this.resultType = cfg.resultType;
 
     this.http = HttpClient.newBuilder()
-        .connectTimeout(Duration.ofMillis(timeoutMs))
+        .connectTimeout(Duration.ofMillis(connectTimeoutMs))
         .build();
   }
 
-  public String fetchRawJsonByUserId(String userId, int maxAttempts, int baseBackoffMs) {
+  private static final int ERROR_BODY_PREVIEW_BYTES = 200;
+
+  /**
+   * 200 응답 본문을 String으로 만들지 않고 reader에 stream으로 넘긴다. reader는 시도마다 새로 호출되므로
+   * 상태(digest 등)는 reader 안에서 만든다.
+   */
+  public <T> T fetchByUserId(UserInfoSyncRealmConfig cfg, String userId, BodyReader<T> reader) {
     int attempt = 0;
     while (true) {
       attempt++;
       try {
-        return doRequest(userId);
+        return doRequest(userId, cfg.httpTimeoutMs, cfg.resultType, reader);
       } catch (RetryableKnoxException e) {
-        if (attempt >= maxAttempts) {
+        if (attempt >= cfg.retryMaxAttempts) {
           throw e;
         }
-        sleepWithBackoff(baseBackoffMs, attempt);
+        metrics.knoxRetried();
+        sleepWithBackoff(cfg.retryBaseBackoffMs, attempt);
       }
     }
   }
 
-  private String doRequest(String userId) {
+  private <T> T doRequest(String userId, int timeoutMs, String resultType, BodyReader<T> reader) {
     String url = baseUrl + "?user_id=" + URLEncoder.encode(userId, StandardCharsets.UTF_8);
     String bodyJson = "{\"resultType\":\"" + resultType + "\"}";
 
@@ -56,21 +70,36 @@ public class KnoxClient {
         .POST(HttpRequest.BodyPublishers.ofString(bodyJson))
         .build();
 
+    // 지표 status tag: 응답 코드, 응답 전 실패는 io_error, 본문 파싱 실패는 invalid_body
+    String status = "io_error";
+    long startedNanos = System.nanoTime();
+    metrics.knoxStarted();
     try {
-      HttpResponse<String> resp = http.send(req, HttpResponse.BodyHandlers.ofString());
+      HttpResponse<InputStream> resp = http.send(req, HttpResponse.BodyHandlers.ofInputStream());
       int code = resp.statusCode();
+      status = SyncMetrics.statusTag(code);
+
+      try (InputStream body = resp.body()) {
+        if (code == 200) {
+          T result = reader.read(body);
+          // 연결 재사용을 위해 남은 본문까지 읽고 닫는다
+          body.transferTo(OutputStream.nullOutputStream());
+          return result;
+        }
 
-      if (code == 200) {
-        return resp.body();
-      }
+        if (code == 429 || (code >= 500 && code <= 599)) {
+          throw new RetryableKnoxException("retryable status=" + code);
+        }
 
-      if (code == 429 || (code >= 500 && code <= 599)) {
-        throw new RetryableKnoxException("retryable status=" + code);
+        throw new NonRetryableKnoxException(
+            "non-retry status=" + code + " body=" + preview(body)
+        );
       }
 
-      throw new NonRetryableKnoxException(
-          "non-retry status=" + code + " body=" + safeTrim(resp.body())
-      );
+    } catch (JsonProcessingException e) {
+      // 본문이 JSON이 아니면 다시 불러도 같다
+      status = "invalid_body";
+      throw new NonRetryableKnoxException("invalid response body", e);
 
     } catch (NonRetryableKnoxException e) {
       // ✅ 필수 수정: non-retryable은 절대 retryable로 바꾸지 않는다
@@ -79,6 +108,9 @@ public class KnoxClient {
     } catch (Exception e) {
       // 네트워크/타임아웃/기타 I/O 성격은 retryable로 처리
       throw new RetryableKnoxException("I/O error", e);
+
+    } finally {
+      metrics.knoxFinished(status, startedNanos);
     }
   }
 
@@ -99,11 +131,17 @@ public class KnoxClient {
     }
   }
 
-  private static String safeTrim(String s) {
-    if (s == null) {
+  private static String preview(InputStream body) {
+    try {
+      return new String(body.readNBytes(ERROR_BODY_PREVIEW_BYTES), StandardCharsets.UTF_8);
+    } catch (IOException e) {
       return "";
     }
-    return s.length() > 200 ? s.substring(0, 200) : s;
+  }
+
+  @FunctionalInterface
+  public interface BodyReader<T> {
+    T read(InputStream body) throws IOException;
   }
 
   public static class RetryableKnoxException extends RuntimeException {
@@ -120,5 +158,9 @@ public class KnoxClient {
     public NonRetryableKnoxException(String m) {
       super(m);
     }
+
+    public NonRetryableKnoxException(String m, Throwable t) {
+      super(m, t);
+    }
   }
 }
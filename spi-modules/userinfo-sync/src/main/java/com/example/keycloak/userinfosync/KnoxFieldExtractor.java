@@ -0,0 +1,198 @@
+package com.example.keycloak.userinfosync;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.StreamReadFeature;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * userinfosync.mappingJson의 dot path들을 trie로 한 번만 컴파일해 두고, Knox 응답을 streaming으로 한 번 훑으면서
+ * 매핑된 값만 꺼낸다. JsonNode tree를 만들지 않는다.
+ *
+ * <p>값 규칙은 기존 tree 방식과 같다.
+ * <ul>
+ *   <li>경로 한 단계마다 배열이면 첫 원소로 내려간다 (한 단계만)</li>
+ *   <li>마지막 값이 배열이면 첫 원소, scalar가 아니거나 blank면 null</li>
+ *   <li>같은 field가 중복되면 마지막 값이 이긴다</li>
+ * </ul>
+ */
+public final class KnoxFieldExtractor {
+  // 본문 stream은 호출한 쪽이 끝까지 읽고 닫는다 (digest/연결 재사용)
+  private static final JsonFactory JSON = JsonFactory.builder()
+      .disable(StreamReadFeature.AUTO_CLOSE_SOURCE)
+      .build();
+
+  private final String[] keys;
+  private final PathNode root = new PathNode();
+
+  public KnoxFieldExtractor(Map<String, String> mapping) {
+    List<String> keyList = new ArrayList<>();
+    // key 순서를 mapping 내용으로 고정 (JSON 순서만 바뀐 config에서도 compact 배열이 호환되도록)
+    for (Map.Entry<String, String> e : new TreeMap<>(mapping).entrySet()) {
+      String dotPath = e.getValue();
+      if (dotPath == null || dotPath.isBlank()) {
+        // 빈 path는 항상 null
+        continue;
+      }
+      int target = keyList.size();
+      keyList.add(e.getKey());
+
+      PathNode node = root;
+      node.subtreeTargets.add(target);
+      for (String part : dotPath.split("\\.")) {
+        node = node.children.computeIfAbsent(part, k -> new PathNode());
+        node.subtreeTargets.add(target);
+      }
+      node.targets.add(target);
+    }
+    this.keys = keyList.toArray(new String[0]);
+  }
+
+  /**
+   * 매핑 key → 추출 값. 값이 없는 key는 결과에 없다.
+   */
+  public Map<String, String> extract(String json) throws IOException {
+    if (json == null || keys.length == 0) {
+      return Collections.emptyMap();
+    }
+    try (JsonParser p = JSON.createParser(json)) {
+      return extract(p);
+    }
+  }
+
+  /**
+   * stream에서 root 값 하나만 읽는다. stream은 닫지 않는다.
+   */
+  public Map<String, String> extract(InputStream json) throws IOException {
+    if (keys.length == 0) {
+      return Collections.emptyMap();
+    }
+    try (JsonParser p = JSON.createParser(json)) {
+      return extract(p);
+    }
+  }
+
+  /**
+   * 추출 결과를 key 순서 배열로 (캐시 보관용). 값이 없는 key는 null.
+   */
+  String[] compact(Map<String, String> values) {
+    String[] out = new String[keys.length];
+    for (int i = 0; i < keys.length; i++) {
+      out[i] = values.get(keys[i]);
+    }
+    return out;
+  }
+
+  Map<String, String> expand(String[] compact) {
+    Map<String, String> result = new LinkedHashMap<>();
+    for (int i = 0; i < keys.length && i < compact.length; i++) {
+      if (compact[i] != null) {
+        result.put(keys[i], compact[i]);
+      }
+    }
+    return result;
+  }
+
+  private Map<String, String> extract(JsonParser p) throws IOException {
+    String[] values = new String[keys.length];
+    if (p.nextToken() != null) {
+      readValue(p, root, values);
+    }
+
+    Map<String, String> result = new LinkedHashMap<>();
+    for (int i = 0; i < keys.length; i++) {
+      if (values[i] != null) {
+        result.put(keys[i], values[i]);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * 현재 토큰(값 시작)이 trie의 node 위치에 해당한다. 값을 다 읽고 나면 parser는 그 값의 마지막 토큰에 있다.
+   */
+  private static void readValue(JsonParser p, PathNode node, String[] values) throws IOException {
+    JsonToken t = p.currentToken();
+
+    if (t == JsonToken.START_ARRAY) {
+      // 배열이면 첫 원소 기준 (한 단계만), 나머지는 건너뛴다
+      JsonToken first = p.nextToken();
+      if (first != JsonToken.END_ARRAY) {
+        if (first == JsonToken.START_OBJECT) {
+          readObject(p, node, values);
+        } else if (first == JsonToken.START_ARRAY) {
+          p.skipChildren();
+        } else {
+          setTargets(node, scalarText(p, first), values);
+        }
+        while (p.nextToken() != JsonToken.END_ARRAY) {
+          p.skipChildren();
+        }
+      }
+      return;
+    }
+
+    if (t == JsonToken.START_OBJECT) {
+      readObject(p, node, values);
+      return;
+    }
+
+    setTargets(node, scalarText(p, t), values);
+  }
+
+  private static void readObject(JsonParser p, PathNode node, String[] values) throws IOException {
+    while (p.nextToken() == JsonToken.FIELD_NAME) {
+      PathNode child = node.children.get(p.currentName());
+      p.nextToken();
+      if (child == null) {
+        p.skipChildren();
+        continue;
+      }
+      // 중복 field면 앞에서 읽은 값은 버린다 (tree 파싱 시 마지막 값이 남는 것과 동일)
+      for (int target : child.subtreeTargets) {
+        values[target] = null;
+      }
+      readValue(p, child, values);
+    }
+  }
+
+  private static void setTargets(PathNode node, String value, String[] values) {
+    if (value == null || value.isBlank()) {
+      return;
+    }
+    for (int target : node.targets) {
+      values[target] = value;
+    }
+  }
+
+  private static String scalarText(JsonParser p, JsonToken t) throws IOException {
+    switch (t) {
+      case VALUE_STRING:
+      case VALUE_NUMBER_INT:
+      case VALUE_TRUE:
+      case VALUE_FALSE:
+        return p.getText();
+      case VALUE_NUMBER_FLOAT:
+        // tree 방식(DoubleNode.asText)과 같은 표기
+        return Double.toString(p.getDoubleValue());
+      default:
+        return null;
+    }
+  }
+
+  private static final class PathNode {
+    final Map<String, PathNode> children = new HashMap<>();
+    final List<Integer> targets = new ArrayList<>(1);
+    final List<Integer> subtreeTargets = new ArrayList<>(1);
+  }
+}
@@ -0,0 +1,101 @@
+package com.example.keycloak.userinfosync;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Knox 응답에서 뽑은 매핑 값 캐시 (노드 메모리). 배치 재시도/이어받기와 단건 sync가 같은 유저를 TTL 안에 다시
+ * 조회하면 Knox를 부르지 않는다.
+ *
+ * <p>응답 본문은 들고 있지 않고 extractor key 순서의 String[]과 digest만 둔다. entry는 만들 때의 mapping
+ * fingerprint(config 객체가 가진 String 참조라 entry마다 복사되지 않음)를 같이 들고 있어서, mapping/resultType이
+ * 바뀌면 miss로 처리된다. maxEntries를 넘으면 만료된 entry부터 지우고, 그래도 차 있으면 임의 entry를 10% 정도
+ * 덜어낸다.
+ */
+final class KnoxLookupCache {
+  private final Map<String, CacheEntry> entries = new ConcurrentHashMap<>();
+  private final long ttlMs;
+  private final int maxEntries;
+
+  KnoxLookupCache(long ttlMs, int maxEntries) {
+    this.ttlMs = ttlMs;
+    this.maxEntries = maxEntries;
+  }
+
+  boolean isEnabled() {
+    return ttlMs > 0 && maxEntries > 0;
+  }
+
+  /**
+   * 만료됐거나 없으면 null.
+   */
+  CacheEntry get(String realmId, UserInfoSyncRealmConfig cfg, String username) {
+    if (!isEnabled()) {
+      return null;
+    }
+    String key = key(realmId, username);
+    CacheEntry entry = entries.get(key);
+    if (entry == null) return null;
+    if (entry.expiresAtMs < System.currentTimeMillis()
+        || !entry.fingerprint.equals(cfg.mappingFingerprint)) {
+      entries.remove(key, entry);
+      return null;
+    }
+    return entry;
+  }
+
+  void put(String realmId, UserInfoSyncRealmConfig cfg, String username, Map<String, String> values, String digest) {
+    if (!isEnabled()) {
+      return;
+    }
+    if (entries.size() >= maxEntries) {
+      evict();
+    }
+    long expiresAt = System.currentTimeMillis() + ttlMs;
+    entries.put(key(realmId, username),
+        new CacheEntry(cfg.mappingFingerprint, cfg.extractor.compact(values), digest, expiresAt));
+  }
+
+  void invalidate(String realmId, String username) {
+    entries.remove(key(realmId, username));
+  }
+
+  void clear() {
+    entries.clear();
+  }
+
+  private void evict() {
+    long now = System.currentTimeMillis();
+    entries.values().removeIf(e -> e.expiresAtMs < now);
+
+    int target = maxEntries - Math.max(1, maxEntries / 10);
+    Iterator<String> it = entries.keySet().iterator();
+    while (entries.size() > target && it.hasNext()) {
+      it.next();
+      it.remove();
+    }
+  }
+
+  private static String key(String realmId, String username) {
+    return realmId + '\n' + username;
+  }
+
+  static final class CacheEntry {
+    private final String fingerprint;
+    private final String[] values;
+    final String digest;
+    private final long expiresAtMs;
+
+    private CacheEntry(String fingerprint, String[] values, String digest, long expiresAtMs) {
+      this.fingerprint = fingerprint;
+      this.values = values;
+      this.digest = digest;
+      this.expiresAtMs = expiresAtMs;
+    }
+
+    Map<String, String> values(KnoxFieldExtractor extractor) {
+      return extractor.expand(values);
+    }
+  }
+}
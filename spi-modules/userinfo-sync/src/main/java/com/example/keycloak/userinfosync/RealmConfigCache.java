@@ -0,0 +1,95 @@
+package com.example.keycloak.userinfosync;
+
+import org.keycloak.models.RealmModel;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * timer tick마다 mappingJson/CSV를 다시 파싱하지 않도록 realm별 config를 노드 메모리에 둔다.
+ *
+ * <p>key는 realm id, 유효성은 userinfosync.* attribute 복사본과의 Map.equals로 판단한다 (체크포인트 attribute는
+ * 제외). 이 노드에서 realm attribute가 바뀌면 이벤트로 바로 지우고, 다른 노드에서 바뀐 건 다음 tick의 비교로
+ * 잡는다. 다음 window까지 할 일이 없는 realm은 skipUntil로 tick을 건너뛴다.
+ *
+ * <p>파싱에 실패한 config(잘못된 mappingJson 등)도 같은 key로 "깨진 entry"를 남겨서, attribute가 바뀔 때까지는
+ * 다시 파싱하지 않고 비활성처럼 null을 돌려준다. 에러 로그는 entry를 만들 때 한 번만 남긴다.
+ */
+final class RealmConfigCache {
+  private static final String PREFIX = "userinfosync.";
+  private static final String ENABLED = PREFIX + "enabled";
+
+  private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+  /**
+   * 비활성 realm이거나 config가 깨졌으면 null. enabled attribute 하나만 보고 바로 돌아간다.
+   */
+  UserInfoSyncRealmConfig get(RealmModel realm) {
+    if (!"true".equalsIgnoreCase(realm.getAttribute(ENABLED))) {
+      entries.remove(realm.getId());
+      return null;
+    }
+
+    Map<String, String> attrs = realm.getAttributes();
+    Map<String, String> configAttrs = configAttributes(attrs);
+    Entry entry = entries.get(realm.getId());
+    if (entry != null && entry.attrs.equals(configAttrs)) {
+      return entry.cfg;
+    }
+
+    UserInfoSyncRealmConfig cfg;
+    try {
+      cfg = UserInfoSyncRealmConfig.fromAttributes(attrs);
+    } catch (RuntimeException e) {
+      Log.error("invalid userinfosync config realm=" + realm.getName()
+          + ", sync disabled until the attributes change", e);
+      cfg = null;
+    }
+    entries.put(realm.getId(), new Entry(configAttrs, cfg));
+    return cfg;
+  }
+
+  boolean isSkipped(String realmId, long nowMs) {
+    Entry entry = entries.get(realmId);
+    return entry != null && nowMs < entry.skipUntilMs;
+  }
+
+  void skipUntil(String realmId, long untilMs) {
+    Entry entry = entries.get(realmId);
+    if (entry != null) {
+      entry.skipUntilMs = untilMs;
+    }
+  }
+
+  void invalidate(String realmId) {
+    entries.remove(realmId);
+  }
+
+  static boolean isConfigAttribute(String name) {
+    return name != null && name.startsWith(PREFIX) && !name.startsWith(SyncCheckpoint.ATTRIBUTE);
+  }
+
+  // hash로 줄이면 충돌 시 예전 config/skipUntil이 남으므로 값 그대로 비교한다 (config key는 수십 개 이하)
+  private static Map<String, String> configAttributes(Map<String, String> attrs) {
+    Map<String, String> copy = new HashMap<>();
+    for (Map.Entry<String, String> e : attrs.entrySet()) {
+      if (isConfigAttribute(e.getKey())) {
+        copy.put(e.getKey(), e.getValue());
+      }
+    }
+    return copy;
+  }
+
+  private static final class Entry {
+    final Map<String, String> attrs;
+    // null이면 파싱 실패 (attrs가 바뀔 때까지 유지)
+    final UserInfoSyncRealmConfig cfg;
+    volatile long skipUntilMs;
+
+    Entry(Map<String, String> attrs, UserInfoSyncRealmConfig cfg) {
+      this.attrs = attrs;
+      this.cfg = cfg;
+    }
+  }
+}
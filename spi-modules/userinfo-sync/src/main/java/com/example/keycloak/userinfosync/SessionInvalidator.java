@@ -0,0 +1,77 @@
+package com.example.keycloak.userinfosync;
+
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import java.util.List;
+
+/**
+ * TX-2 커밋 후에 invalidate 대상 유저의 세션을 batch 단위로 지운다.
+ *
+ * <p>notBefore는 TX-2 안에서 체크포인트와 같이 저장되므로(노드가 죽어도 토큰 refresh는 막힌다) 여기서는
+ * Infinispan 세션 제거만 한다. batch마다 별도 TX를 쓰고, sessionsPerSecond로 cluster session cache 트래픽을
+ * 제한한다.
+ */
+final class SessionInvalidator {
+  private final KeycloakSessionFactory factory;
+  private final UserInfoSyncRealmConfig cfg;
+
+  SessionInvalidator(KeycloakSessionFactory factory, UserInfoSyncRealmConfig cfg) {
+    this.factory = factory;
+    this.cfg = cfg;
+  }
+
+  void removeSessions(String realmId, List<String> userIds) {
+    if (userIds.isEmpty() || cfg.invalidationNotBeforeOnly) {
+      return;
+    }
+
+    int batchSize = cfg.invalidationBatchSize;
+    for (int from = 0; from < userIds.size(); from += batchSize) {
+      if (Thread.currentThread().isInterrupted()) {
+        Log.warn("session removal interrupted realm=" + realmId + " remaining=" + (userIds.size() - from));
+        return;
+      }
+      List<String> batch = userIds.subList(from, Math.min(from + batchSize, userIds.size()));
+      long startedAt = System.currentTimeMillis();
+
+      try {
+        KeycloakModelUtils.runJobInTransaction(factory, (KeycloakSession session) -> {
+          RealmModel realm = session.realms().getRealm(realmId);
+          if (realm == null) return;
+
+          for (String userId : batch) {
+            UserModel user = session.users().getUserById(realm, userId);
+            if (user != null) {
+              session.sessions().removeUserSessions(realm, user);
+            }
+          }
+        });
+      } catch (Exception e) {
+        // notBefore는 이미 저장됐으니 세션은 다음 refresh 때 거절된다
+        Log.error("session removal failed realm=" + realmId + " users=" + batch.size(), e);
+      }
+
+      throttle(batch.size(), startedAt);
+    }
+  }
+
+  private void throttle(int removed, long startedAt) {
+    if (cfg.invalidationSessionsPerSecond <= 0) {
+      return;
+    }
+    long minMs = removed * 1000L / cfg.invalidationSessionsPerSecond;
+    long sleep = minMs - (System.currentTimeMillis() - startedAt);
+    if (sleep <= 0) {
+      return;
+    }
+    try {
+      Thread.sleep(sleep);
+    } catch (InterruptedException ignored) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,202 @@
+package com.example.keycloak.userinfosync;
+
+import org.keycloak.models.RealmModel;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.UUID;
+
+/**
+ * shard별 진행 상태. realm attribute({@code userinfosync.checkpoint.<shard>})에 남긴다.
+ *
+ * <p>realm attribute 쓰기는 realm cache를 클러스터 전체에서 무효화하므로 페이지마다 쓰지 않는다. 메모리에서는
+ * 페이지마다 전진하고, 저장은 {@code userinfosync.checkpoint.intervalSeconds}(기본 60, lease의 1/3 이하)가
+ * 지난 페이지 커밋과 shard 시작/끝에서만 한다. 저장할 때는 페이지 반영(TX-2)과 같은 트랜잭션이라, 저장된
+ * lastUserId까지는 반영이 끝난 상태다. 노드가 중간에 죽으면 다른 노드가 updatedAt이 lease보다 오래된 체크포인트를
+ * 이어받고, 마지막 저장 이후 페이지는 다시 돈다(값이 같으면 skip, 집계 수는 그만큼 겹칠 수 있음).
+ *
+ * <p>이어받을 때마다 {@code owner}를 새로 발급한다. 저장 전에는 realm에 있는 값이 이 노드가 마지막으로 쓴(또는 읽은)
+ * owner/updatedAt/lastUserId 그대로인지 확인해서, 늦게 깨어난 원래 노드가 이어받은 노드의 진행을 덮어쓰지 않게 한다.
+ *
+ * <p>dry-run은 {@code userinfosync.checkpoint.dryrun.<shard>}에 따로 남겨서 같은 날 실제 run을 막지 않는다.
+ * 이때 changed/invalidated는 "바뀔/무효화될" 유저 수고, key별 diff 수와 세션 수를 같이 쌓는다.
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public final class SyncCheckpoint {
+  public static final String ATTRIBUTE = "userinfosync.checkpoint";
+
+  public static final String STATUS_RUNNING = "RUNNING";
+  public static final String STATUS_DONE = "DONE";
+
+  private static final ObjectMapper OM = new ObjectMapper();
+
+  public String runId;
+  public String dateKey;
+  public int shard;
+  public int shards = 1;
+  public String status;
+  // 이 shard를 진행 중인 시도의 id (시작/이어받기마다 새로 발급)
+  public String owner;
+  public String lastUserId;
+  public long snapshotAt;
+  public long updatedAt;
+  public long processedUsers;
+  public long changedUsers;
+  public long unchangedUsers;
+  public long invalidatedUsers;
+  public long failedUsers;
+  public boolean dryRun;
+  // dry-run 전용: mapping key → 값이 바뀔 유저 수, 무효화 대상 유저의 현재 세션 수
+  @JsonInclude(JsonInclude.Include.NON_EMPTY)
+  public Map<String, Long> keyChanges = new TreeMap<>();
+  @JsonInclude(JsonInclude.Include.NON_DEFAULT)
+  public long affectedSessions;
+
+  // realm에 마지막으로 저장된(또는 읽은) 상태. 저장 전 소유 확인용이라 직렬화하지 않는다
+  private boolean persisted;
+  private String persistedOwner;
+  private long persistedUpdatedAt;
+  private String persistedLastUserId;
+
+  public static SyncCheckpoint start(String dateKey, int shard, int shards, long now, boolean dryRun) {
+    SyncCheckpoint cp = new SyncCheckpoint();
+    cp.dryRun = dryRun;
+    cp.runId = UUID.randomUUID().toString();
+    cp.dateKey = dateKey;
+    cp.shard = shard;
+    cp.shards = shards;
+    cp.status = STATUS_RUNNING;
+    cp.owner = UUID.randomUUID().toString();
+    cp.snapshotAt = now;
+    cp.updatedAt = now;
+    return cp;
+  }
+
+  public static SyncCheckpoint read(RealmModel realm, int shard, boolean dryRun) {
+    return parse(realm.getName(), realm.getAttribute(attributeName(shard, dryRun)));
+  }
+
+  static SyncCheckpoint parse(String realmName, String raw) {
+    if (raw == null || raw.isBlank()) {
+      return null;
+    }
+    try {
+      SyncCheckpoint cp = OM.readValue(raw, SyncCheckpoint.class);
+      cp.markPersisted();
+      return cp;
+    } catch (Exception e) {
+      Log.warn("ignoring unreadable checkpoint realm=" + realmName + ": " + e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * {@code stored}는 같은 TX에서 잠그고 다시 읽은 realm 값. 맞지 않으면 다른 노드가 이어받았거나 새 run이 시작된 것이다.
+   */
+  public void write(RealmModel realm, SyncCheckpoint stored) {
+    if (!ownsStored(stored)) {
+      throw new CheckpointLostException("checkpoint taken over realm=" + realm.getName()
+          + " mine=[" + this + "] stored=[" + stored + "]");
+    }
+    try {
+      realm.setAttribute(attributeName(shard, dryRun), OM.writeValueAsString(this));
+    } catch (Exception e) {
+      throw new IllegalStateException("failed to write userinfosync checkpoint", e);
+    }
+    markPersisted();
+  }
+
+  /**
+   * lease 만료된 체크포인트를 이어받는다. 첫 저장 때 realm 값이 읽은 그대로면 새 owner로 바뀐다.
+   */
+  public void takeOver() {
+    this.owner = UUID.randomUUID().toString();
+  }
+
+  private boolean ownsStored(SyncCheckpoint stored) {
+    if (!persisted) {
+      // 새 run: 같은 날 다른 run이 먼저 저장했으면 진행하지 않는다
+      return stored == null || !Objects.equals(dateKey, stored.dateKey);
+    }
+    return stored != null
+        && Objects.equals(runId, stored.runId)
+        && Objects.equals(persistedOwner, stored.owner)
+        && persistedUpdatedAt == stored.updatedAt
+        && Objects.equals(persistedLastUserId, stored.lastUserId);
+  }
+
+  private void markPersisted() {
+    this.persisted = true;
+    this.persistedOwner = owner;
+    this.persistedUpdatedAt = updatedAt;
+    this.persistedLastUserId = lastUserId;
+  }
+
+  public static String attributeName(int shard, boolean dryRun) {
+    return ATTRIBUTE + (dryRun ? ".dryrun." : ".") + shard;
+  }
+
+  UserIdShard range() {
+    return UserIdShard.of(shard, shards);
+  }
+
+  @JsonIgnore
+  public boolean isDone() {
+    return STATUS_DONE.equals(status);
+  }
+
+  public boolean isStale(long now, long leaseMs) {
+    return !isDone() && now - updatedAt > leaseMs;
+  }
+
+  public void advance(String lastUserId, int processed, int changed, int unchanged, int invalidated, int failed) {
+    this.lastUserId = lastUserId;
+    this.processedUsers += processed;
+    this.changedUsers += changed;
+    this.unchangedUsers += unchanged;
+    this.invalidatedUsers += invalidated;
+    this.failedUsers += failed;
+    this.updatedAt = System.currentTimeMillis();
+  }
+
+  public void addDryRunDiff(Map<String, Integer> changesByKey, long sessions) {
+    changesByKey.forEach((key, n) -> keyChanges.merge(key, (long) n, Long::sum));
+    this.affectedSessions += sessions;
+  }
+
+  public void markDone() {
+    this.status = STATUS_DONE;
+    this.updatedAt = System.currentTimeMillis();
+  }
+
+  @Override
+  public String toString() {
+    return "runId=" + runId
+        + " dateKey=" + dateKey
+        + " shard=" + shard + "/" + shards
+        + " status=" + status
+        + " owner=" + owner
+        + " lastUserId=" + lastUserId
+        + " processed=" + processedUsers
+        + " changed=" + changedUsers
+        + " unchanged=" + unchangedUsers
+        + " invalidated=" + invalidatedUsers
+        + " failed=" + failedUsers
+        + (dryRun ? " dryRun=true keyChanges=" + keyChanges + " affectedSessions=" + affectedSessions : "");
+  }
+
+  /**
+   * 다른 노드가 이 shard를 이어받아 이 노드의 run을 멈춰야 할 때.
+   */
+  public static class CheckpointLostException extends RuntimeException {
+    public CheckpointLostException(String m) {
+      super(m);
+    }
+  }
+}
@@ -0,0 +1,144 @@
+package com.example.keycloak.userinfosync;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * userinfo-sync Micrometer 지표. Keycloak(Quarkus)이 globalRegistry에 붙이는 registry를 쓰므로 metrics-enabled면
+ * /metrics 에 그대로 나온다.
+ *
+ * <ul>
+ *   <li>userinfosync.knox.requests (timer, status=200|4xx|429|5xx|io_error) — histogram 포함</li>
+ *   <li>userinfosync.knox.retries / userinfosync.knox.inflight</li>
+ *   <li>userinfosync.page.duration (timer, phase=fetch|tx|diff) — diff는 dry-run 비교</li>
+ *   <li>userinfosync.users (counter, result=changed|unchanged|invalidated|failed) — rate가 users/sec</li>
+ *   <li>userinfosync.dryrun.users (counter, result=would_change|would_invalidate) /
+ *       userinfosync.dryrun.sessions</li>
+ *   <li>userinfosync.shards.active / userinfosync.ondemand.queue (gauge)</li>
+ * </ul>
+ */
+final class SyncMetrics {
+  private final MeterRegistry registry;
+  private final Map<String, Timer> knoxTimers = new ConcurrentHashMap<>();
+  private final Counter knoxRetries;
+  private final AtomicInteger knoxInFlight = new AtomicInteger();
+  private final Timer fetchTimer;
+  private final Timer txTimer;
+  private final Timer diffTimer;
+  private final Counter processedUsers;
+  private final Counter changedUsers;
+  private final Counter unchangedUsers;
+  private final Counter invalidatedUsers;
+  private final Counter failedUsers;
+  private final Counter dryRunChanged;
+  private final Counter dryRunInvalidated;
+  private final Counter dryRunSessions;
+
+  SyncMetrics(MeterRegistry registry) {
+    this.registry = registry;
+    this.knoxRetries = Counter.builder("userinfosync.knox.retries")
+        .description("Knox requests retried after a retryable failure")
+        .register(registry);
+    Gauge.builder("userinfosync.knox.inflight", knoxInFlight, AtomicInteger::get)
+        .description("Knox requests currently in flight on this node")
+        .register(registry);
+    this.fetchTimer = pageTimer("fetch");
+    this.txTimer = pageTimer("tx");
+    this.diffTimer = pageTimer("diff");
+    this.processedUsers = usersCounter("processed");
+    this.changedUsers = usersCounter("changed");
+    this.unchangedUsers = usersCounter("unchanged");
+    this.invalidatedUsers = usersCounter("invalidated");
+    this.failedUsers = usersCounter("failed");
+    this.dryRunChanged = dryRunCounter("would_change");
+    this.dryRunInvalidated = dryRunCounter("would_invalidate");
+    this.dryRunSessions = Counter.builder("userinfosync.dryrun.sessions")
+        .description("Sessions a real run would have invalidated")
+        .register(registry);
+  }
+
+  void gauge(String name, String description, Supplier<Number> value) {
+    Gauge.builder(name, value).description(description).register(registry);
+  }
+
+  void knoxStarted() {
+    knoxInFlight.incrementAndGet();
+  }
+
+  void knoxFinished(String status, long startedNanos) {
+    knoxInFlight.decrementAndGet();
+    knoxTimers.computeIfAbsent(status, s -> Timer.builder("userinfosync.knox.requests")
+            .description("Knox lookup latency per attempt")
+            .tag("status", s)
+            .publishPercentileHistogram()
+            .register(registry))
+        .record(Duration.ofNanos(System.nanoTime() - startedNanos));
+  }
+
+  void knoxRetried() {
+    knoxRetries.increment();
+  }
+
+  void fetchPhase(long startedNanos) {
+    fetchTimer.record(Duration.ofNanos(System.nanoTime() - startedNanos));
+  }
+
+  void txPhase(long startedNanos) {
+    txTimer.record(Duration.ofNanos(System.nanoTime() - startedNanos));
+  }
+
+  void diffPhase(long startedNanos) {
+    diffTimer.record(Duration.ofNanos(System.nanoTime() - startedNanos));
+  }
+
+  void dryRun(int changed, int invalidated, long sessions) {
+    dryRunChanged.increment(changed);
+    dryRunInvalidated.increment(invalidated);
+    dryRunSessions.increment(sessions);
+  }
+
+  void users(int processed, int changed, int unchanged, int invalidated, int failed) {
+    processedUsers.increment(processed);
+    changedUsers.increment(changed);
+    unchangedUsers.increment(unchanged);
+    invalidatedUsers.increment(invalidated);
+    failedUsers.increment(failed);
+  }
+
+  static String statusTag(int code) {
+    if (code == 200 || code == 429) return String.valueOf(code);
+    if (code >= 500) return "5xx";
+    if (code >= 400) return "4xx";
+    return String.valueOf(code);
+  }
+
+  private Timer pageTimer(String phase) {
+    return Timer.builder("userinfosync.page.duration")
+        .description("Per-page duration of the Knox fetch and the write transaction")
+        .tag("phase", phase)
+        .publishPercentileHistogram()
+        .register(registry);
+  }
+
+  private Counter dryRunCounter(String result) {
+    return Counter.builder("userinfosync.dryrun.users")
+        .description("Users a real run would have changed or invalidated")
+        .tag("result", result)
+        .register(registry);
+  }
+
+  private Counter usersCounter(String result) {
+    return Counter.builder("userinfosync.users")
+        .description("Users handled by userinfo-sync")
+        .tag("result", result)
+        .register(registry);
+  }
+}
@@ -0,0 +1,43 @@
+package com.example.keycloak.userinfosync;
+
+/**
+ * realm 유저를 USER_ENTITY.ID 범위로 나눈 구간 하나.
+ *
+ * <p>Keycloak user id는 소문자 UUID라 앞 4자리 hex(0x0000~0xFFFF)를 균등 분할한다. 첫 shard의 하한과
+ * 마지막 shard의 상한은 열어둬서 UUID가 아닌 id(import 등)도 어느 한 shard에는 반드시 포함된다.
+ */
+final class UserIdShard {
+  static final int MAX_SHARDS = 256;
+
+  final int index;
+  final int count;
+  final String fromInclusive;
+  final String toExclusive;
+
+  private UserIdShard(int index, int count, String fromInclusive, String toExclusive) {
+    this.index = index;
+    this.count = count;
+    this.fromInclusive = fromInclusive;
+    this.toExclusive = toExclusive;
+  }
+
+  static UserIdShard of(int index, int count) {
+    if (count < 1 || count > MAX_SHARDS || index < 0 || index >= count) {
+      throw new IllegalArgumentException("invalid shard " + index + "/" + count);
+    }
+    String from = index == 0 ? null : boundary(index, count);
+    String to = index == count - 1 ? null : boundary(index + 1, count);
+    return new UserIdShard(index, count, from, to);
+  }
+
+  private static String boundary(int index, int count) {
+    int prefix = (int) ((long) index * 0x10000 / count);
+    return String.format("%04x", prefix);
+  }
+
+  @Override
+  public String toString() {
+    return index + "/" + count + " [" + (fromInclusive == null ? "" : fromInclusive)
+        + ", " + (toExclusive == null ? "" : toExclusive) + ")";
+  }
+}
@@ -0,0 +1,86 @@
+package com.example.keycloak.userinfosync;
+
+import org.keycloak.Config;
+import org.keycloak.events.Event;
+import org.keycloak.events.EventListenerProvider;
+import org.keycloak.events.EventListenerProviderFactory;
+import org.keycloak.events.EventType;
+import org.keycloak.events.admin.AdminEvent;
+import org.keycloak.events.admin.OperationType;
+import org.keycloak.events.admin.ResourceType;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+
+/**
+ * 로그인(LOGIN)과 관리자 유저 생성/수정(USER CREATE/UPDATE) 시 해당 유저의 단건 sync를 큐에 넣는다. 야간 배치를
+ * 기다리지 않고 부서 변경 등이 반영된다. 모든 realm에 걸리는 global listener이고, 실제 처리 여부는 realm의
+ * userinfosync.enabled / userinfosync.onDemand.enabled로 결정한다.
+ */
+public class UserInfoSyncEventListenerProviderFactory implements EventListenerProviderFactory {
+
+  public static final String PROVIDER_ID = "userinfo-sync";
+
+  @Override
+  public String getId() {
+    return PROVIDER_ID;
+  }
+
+  @Override
+  public EventListenerProvider create(KeycloakSession session) {
+    return new EventListenerProvider() {
+      @Override
+      public void onEvent(Event event) {
+        if (event.getType() == EventType.LOGIN && event.getError() == null) {
+          // 방금 만든 세션은 끊지 않는다. 바뀐 claim은 다음 token refresh에서 반영
+          request(session, event.getRealmId(), event.getUserId(), false);
+        }
+      }
+
+      @Override
+      public void onEvent(AdminEvent event, boolean includeRepresentation) {
+        if (event.getResourceType() != ResourceType.USER || event.getError() != null) {
+          return;
+        }
+        if (event.getOperationType() != OperationType.CREATE
+            && event.getOperationType() != OperationType.UPDATE) {
+          return;
+        }
+        request(session, event.getRealmId(), userIdFromPath(event.getResourcePath()), true);
+      }
+
+      @Override
+      public void close() {
+      }
+    };
+  }
+
+  private static void request(KeycloakSession session, String realmId, String userId, boolean invalidate) {
+    if (realmId == null || userId == null) {
+      return;
+    }
+    RealmModel realm = session.realms().getRealm(realmId);
+    UserInfoSyncProvider sync = session.getProvider(UserInfoSyncProvider.class);
+    if (realm != null && sync != null) {
+      sync.requestUserSync(realm, userId, invalidate);
+    }
+  }
+
+  // "users/{id}" 만 대상 (users/{id}/groups/... 같은 하위 리소스는 제외)
+  static String userIdFromPath(String resourcePath) {
+    if (resourcePath == null || !resourcePath.startsWith("users/")) {
+      return null;
+    }
+    String id = resourcePath.substring("users/".length());
+    return id.isEmpty() || id.indexOf('/') >= 0 ? null : id;
+  }
+
+  @Override
+  public boolean isGlobal() {
+    return true;
+  }
+
+  @Override public void init(Config.Scope config) {}
+  @Override public void postInit(KeycloakSessionFactory factory) {}
+  @Override public void close() {}
+}
@@ -0,0 +1,17 @@
+package com.example.keycloak.userinfosync;
+
+import org.keycloak.models.RealmModel;
+import org.keycloak.provider.Provider;
+
+/**
+ * userinfo-sync SPI. 실행 상태(Knox client, executor, timer, 단건 sync 큐)는 factory가 노드 단위로 들고 있다.
+ */
+public interface UserInfoSyncProvider extends Provider {
+
+  /**
+   * 유저 한 명의 sync를 백그라운드 큐에 넣는다. realm에서 sync/단건 sync가 꺼져 있거나 큐가 가득 차면 false.
+   *
+   * @param invalidateSessions false면 invalidateOnKeys가 바뀌어도 세션을 끊지 않는다 (방금 만든 세션 보호)
+   */
+  boolean requestUserSync(RealmModel realm, String userId, boolean invalidateSessions);
+}
@@ -1,327 +1,307 @@
 package com.example.keycloak.userinfosync;
 
+import org.keycloak.Config;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
 import org.keycloak.models.RealmModel;
-import org.keycloak.models.UserModel;
 import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.provider.ProviderConfigProperty;
+import org.keycloak.provider.ProviderConfigurationBuilder;
+import org.keycloak.provider.ProviderFactory;
+import org.keycloak.timer.TimerProvider;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.MissingNode;
+import io.micrometer.core.instrument.Metrics;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashSet;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
 import java.util.Set;
-import java.util.concurrent.*;
-
-public class UserInfoSyncRunner {
-  private static final ObjectMapper OM = new ObjectMapper();
-
-  private final KeycloakSessionFactory factory;
-  private final UserInfoSyncRealmConfig cfg;
-
-  public UserInfoSyncRunner(KeycloakSessionFactory factory, UserInfoSyncRealmConfig cfg) {
-    this.factory = factory;
-    this.cfg = cfg;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * userinfo-sync 런타임. 노드에 하나라서 Knox client / executor를 여기서 만들고 run 사이에 공유한다.
+ *
+ * <p>설정 (spi-userinfo-sync-default-*):
+ * <ul>
+ *   <li>pollIntervalSeconds: timer가 realm window를 확인하는 주기 (기본 60)</li>
+ *   <li>knoxThreads: Knox 호출 공유 pool 크기 (기본 32). realm별 동시성은 userinfosync.maxConcurrency</li>
+ *   <li>shardThreads: 이 노드에서 동시에 도는 shard 수 (기본 4)</li>
+ *   <li>knoxConnectTimeoutMs: Knox 연결 timeout (기본 5000)</li>
+ *   <li>knoxCacheTtlSeconds: Knox 조회 결과 캐시 TTL (기본 600, 0이면 끔)</li>
+ *   <li>knoxCacheMaxEntries: Knox 조회 결과 캐시 최대 유저 수 (기본 100000)</li>
+ *   <li>onDemandQueueSize: 단건 sync 대기 큐 크기 (기본 10000)</li>
+ *   <li>onDemandCoalesceMs: 단건 sync 요청을 모으는 시간 (기본 2000)</li>
+ *   <li>onDemandBatchSize: 단건 sync 한 번에 처리하는 최대 유저 수 (기본 200)</li>
+ * </ul>
+ */
+public class UserInfoSyncProviderFactory implements ProviderFactory<UserInfoSyncProvider> {
+
+  public static final String PROVIDER_ID = "default";
+  static final String TIMER_TASK_NAME = "userinfo-sync";
+
+  private long pollIntervalMs;
+  private int knoxThreads;
+  private int shardThreads;
+  private int knoxConnectTimeoutMs;
+  private volatile KnoxLookupCache knoxCache = new KnoxLookupCache(0, 0);
+  private int onDemandCoalesceMs;
+  private int onDemandBatchSize;
+  private volatile UserSyncQueue userSyncQueue;
+  private volatile ExecutorService onDemandWorker;
+  private volatile KeycloakSessionFactory sessionFactory;
+  private SyncMetrics metrics;
+
+  private volatile KnoxClient knox;
+  private volatile ExecutorService knoxPool;
+  private volatile ExecutorService shardPool;
+
+  // 이 노드에서 실행 중이거나 대기 중인 shard (realmId:shard). 같은 shard를 두 번 넣지 않는다
+  private final Set<String> inFlightShards = ConcurrentHashMap.newKeySet();
+
+  private final RealmConfigCache configCache = new RealmConfigCache();
+
+  @Override
+  public String getId() {
+    return PROVIDER_ID;
   }
 
-  public void syncRealm(String realmId) {
-    KnoxClient knox = new KnoxClient(cfg);
-
-    // pool 재사용 (Runner 생명주기)
-    ExecutorService pool = Executors.newFixedThreadPool(cfg.maxConcurrency);
-
-    try {
-      int first = 0;
-      int max = cfg.batchSize;
+  @Override
+  public UserInfoSyncProvider create(KeycloakSession session) {
+    return new DefaultUserInfoSyncProvider(this);
+  }
 
-      while (true) {
-        final int pageFirst = first;
+  @Override
+  public void init(Config.Scope config) {
+    this.pollIntervalMs = Math.max(1, config.getInt("pollIntervalSeconds", 60)) * 1000L;
+    this.knoxThreads = Math.max(1, config.getInt("knoxThreads", 32));
+    this.shardThreads = Math.max(1, config.getInt("shardThreads", 4));
+    this.knoxConnectTimeoutMs = Math.max(1, config.getInt("knoxConnectTimeoutMs", 5000));
+    this.knoxCache = new KnoxLookupCache(
+        Math.max(0, config.getInt("knoxCacheTtlSeconds", 600)) * 1000L,
+        Math.max(0, config.getInt("knoxCacheMaxEntries", 100_000)));
+    this.userSyncQueue = new UserSyncQueue(config.getInt("onDemandQueueSize", 10_000));
+    this.onDemandCoalesceMs = Math.max(0, config.getInt("onDemandCoalesceMs", 2000));
+    this.onDemandBatchSize = Math.max(1, config.getInt("onDemandBatchSize", 200));
+
+    this.metrics = new SyncMetrics(Metrics.globalRegistry);
+    metrics.gauge("userinfosync.shards.active", "Shards running or queued on this node", inFlightShards::size);
+    metrics.gauge("userinfosync.ondemand.queue", "Users waiting for single-user sync", () -> userSyncQueue.size());
+  }
 
-        // 1) TX-1: user identifiers만 짧게 가져오기
-        PageSnapshot page = loadPageSnapshot(realmId, pageFirst, max);
-        if (!page.hasMore) {
-          break;
+  @Override
+  public void postInit(KeycloakSessionFactory factory) {
+    factory.register(event -> {
+      if (event instanceof RealmModel.RealmAttributeUpdateEvent) {
+        RealmModel.RealmAttributeUpdateEvent e = (RealmModel.RealmAttributeUpdateEvent) event;
+        if (RealmConfigCache.isConfigAttribute(e.getAttributeName())) {
+          configCache.invalidate(e.getRealm().getId());
         }
+      } else if (event instanceof RealmModel.RealmRemovedEvent) {
+        configCache.invalidate(((RealmModel.RealmRemovedEvent) event).getRealm().getId());
+      }
+    });
 
-        // 2) TX 밖: Knox 병렬 호출 + timeout
-        Map<String, LookupResult> lookupByUsername =
-            fetchKnoxInParallel(pool, knox, page.usernames);
+    try {
+      this.knox = new KnoxClient(knoxConnectTimeoutMs, metrics);
+    } catch (IllegalStateException e) {
+      // KNOX_* env가 없는 환경(로컬 등)에서는 기동은 막지 않고 sync만 끈다
+      Log.warn("userinfo-sync disabled: " + e.getMessage());
+      return;
+    }
 
-        // 3) TX-2: 결과를 반영 (user 다시 로드 후 업데이트)
-        applyUpdatesInTransaction(realmId, pageFirst, page.userIdsByUsername, lookupByUsername);
+    this.knoxPool = Executors.newFixedThreadPool(knoxThreads, threadFactory("userinfosync-knox"));
+    this.shardPool = Executors.newFixedThreadPool(shardThreads, threadFactory("userinfosync-shard"));
+    this.onDemandWorker = Executors.newSingleThreadExecutor(threadFactory("userinfosync-ondemand"));
+    this.sessionFactory = factory;
+    onDemandWorker.submit(this::drainUserSyncQueue);
 
-        first += max;
-      }
-    } finally {
-      shutdownPool(pool);
-    }
+    KeycloakModelUtils.runJobInTransaction(factory, (KeycloakSession session) -> {
+      TimerProvider timer = session.getProvider(TimerProvider.class);
+      timer.scheduleTask(new UserInfoSyncScheduledTask(this, factory), pollIntervalMs, TIMER_TASK_NAME);
+    });
+    Log.info("scheduled pollIntervalMs=" + pollIntervalMs
+        + " knoxThreads=" + knoxThreads + " shardThreads=" + shardThreads);
   }
 
-  /**
-   * TX-1: page의 유저 식별자만 가져온다 (UserModel 오래 들고있지 않기)
-   */
-  private PageSnapshot loadPageSnapshot(String realmId, int pageFirst, int max) {
-    final PageSnapshot snapshot = new PageSnapshot();
+  @Override
+  public void close() {
+    shutdown(onDemandWorker, "on-demand");
+    shutdown(shardPool, "shard");
+    shutdown(knoxPool, "knox");
+    shardPool = null;
+    onDemandWorker = null;
+    knoxPool = null;
+    knox = null;
+    knoxCache.clear();
+  }
 
-    KeycloakModelUtils.runJobInTransaction(factory, (KeycloakSession session) -> {
-      RealmModel realm = session.realms().getRealm(realmId);
-      if (realm == null) {
-        Log.warn("realm not found: " + realmId);
-        snapshot.hasMore = false;
-        return;
-      }
+  @Override
+  public List<ProviderConfigProperty> getConfigMetadata() {
+    return ProviderConfigurationBuilder.create()
+        .property().name("pollIntervalSeconds").type("int").defaultValue(60)
+        .helpText("How often the timer checks realm sync windows").add()
+        .property().name("knoxThreads").type("int").defaultValue(32)
+        .helpText("Size of the shared Knox request pool").add()
+        .property().name("shardThreads").type("int").defaultValue(4)
+        .helpText("Maximum shards running concurrently on this node").add()
+        .property().name("knoxConnectTimeoutMs").type("int").defaultValue(5000)
+        .helpText("Knox connect timeout").add()
+        .property().name("knoxCacheTtlSeconds").type("int").defaultValue(600)
+        .helpText("TTL of cached Knox lookups (0 disables the cache)").add()
+        .property().name("knoxCacheMaxEntries").type("int").defaultValue(100_000)
+        .helpText("Maximum number of cached Knox lookups").add()
+        .property().name("onDemandQueueSize").type("int").defaultValue(10_000)
+        .helpText("Capacity of the single-user sync queue").add()
+        .property().name("onDemandCoalesceMs").type("int").defaultValue(2000)
+        .helpText("How long to collect single-user sync requests before running them").add()
+        .property().name("onDemandBatchSize").type("int").defaultValue(200)
+        .helpText("Maximum users per single-user sync batch").add()
+        .build();
+  }
 
-      List<UserModel> users = session.users()
-          .searchForUserStream(realm, Collections.emptyMap(), pageFirst, max)
-          .toList();
+  RealmConfigCache configCache() {
+    return configCache;
+  }
 
-      if (users.isEmpty()) {
-        snapshot.hasMore = false;
-        return;
-      }
+  KnoxClient knox() {
+    return knox;
+  }
 
-      // username -> userId (Keycloak 내부 UUID)
-      // (LinkedHashMap: 검색 순서 유지)
-      Map<String, String> map = new LinkedHashMap<>();
-      for (UserModel u : users) {
-        // Knox가 username 기반 조회라고 했으니 username 기준으로 snapshot 생성
-        String username = u.getUsername();
-        if (username == null || username.isBlank()) continue;
-        map.put(username, u.getId());
-      }
+  SyncMetrics metrics() {
+    return metrics;
+  }
 
-      snapshot.realmName = realm.getName();
-      snapshot.userIdsByUsername = map;
-      snapshot.usernames = new ArrayList<>(map.keySet());
-      snapshot.hasMore = !snapshot.usernames.isEmpty();
-    });
+  KnoxLookupCache knoxCache() {
+    return knoxCache;
+  }
 
-    return snapshot;
+  ExecutorService knoxPool() {
+    return knoxPool;
   }
 
   /**
-   * TX 밖: Knox 병렬 호출. timeout/hang 방지.
+   * shard 실행을 timer thread 밖(shard pool)으로 넘긴다. 이미 이 노드에서 돌고 있거나 대기 중이면 false.
    */
-  private Map<String, LookupResult> fetchKnoxInParallel(
-      ExecutorService pool,
-      KnoxClient knox,
-      List<String> usernames
-  ) {
-    Map<String, Future<LookupResult>> futures = new LinkedHashMap<>();
-    for (String username : usernames) {
-      futures.put(username, pool.submit(() -> {
+  boolean submitShard(String realmId, int shard, Runnable job) {
+    ExecutorService pool = shardPool;
+    if (pool == null || pool.isShutdown()) {
+      return false;
+    }
+    String key = realmId + ":" + shard;
+    if (!inFlightShards.add(key)) {
+      return false;
+    }
+    try {
+      pool.submit(() -> {
         try {
-          String rawJson = knox.fetchRawJsonByUserId(
-              username,
-              cfg.retryMaxAttempts,
-              cfg.retryBaseBackoffMs
-          );
-          return LookupResult.ok(username, rawJson);
-        } catch (Exception e) {
-          return LookupResult.fail(username, e);
+          job.run();
+        } finally {
+          inFlightShards.remove(key);
         }
-      }));
-    }
-
-    // 결과 수집 (timeout 적용)
-    Map<String, LookupResult> results = new LinkedHashMap<>();
-    long perUserTimeoutMs = Math.max(1_000L, cfg.knoxPerUserTimeoutMs); // cfg에 추가 권장
-    for (Map.Entry<String, Future<LookupResult>> entry : futures.entrySet()) {
-      String username = entry.getKey();
-      Future<LookupResult> f = entry.getValue();
-
-      try {
-        LookupResult r = f.get(perUserTimeoutMs, TimeUnit.MILLISECONDS);
-        results.put(username, r);
-      } catch (TimeoutException te) {
-        f.cancel(true);
-        results.put(username, LookupResult.fail(username, te));
-      } catch (Exception e) {
-        results.put(username, LookupResult.fail(username, e));
-      }
+      });
+      return true;
+    } catch (RuntimeException e) {
+      inFlightShards.remove(key);
+      throw e;
     }
+  }
 
-    return results;
+  int inFlightShards(String realmId) {
+    String prefix = realmId + ":";
+    return (int) inFlightShards.stream().filter(k -> k.startsWith(prefix)).count();
   }
 
   /**
-   * TX-2: user 재로딩 후 업데이트/무효화.
+   * 단건 sync 요청. sync가 안 켜졌거나(KNOX env 없음 포함) realm에서 끈 경우, 큐가 가득 찬 경우 false.
+   * invalidate=false면 invalidateOnKeys가 바뀌어도 세션을 끊지 않는다 (로그인 직후 요청).
    */
-  private void applyUpdatesInTransaction(
-      String realmId,
-      int pageFirst,
-      Map<String, String> userIdsByUsername,
-      Map<String, LookupResult> lookupByUsername
-  ) {
-    KeycloakModelUtils.runJobInTransaction(factory, (KeycloakSession session) -> {
-      RealmModel realm = session.realms().getRealm(realmId);
-      if (realm == null) {
-        Log.warn("realm not found: " + realmId);
+  boolean requestUserSync(RealmModel realm, String userId, boolean invalidate) {
+    if (onDemandWorker == null || userId == null) {
+      return false;
+    }
+    UserInfoSyncRealmConfig cfg = configCache.get(realm);
+    // dry-run realm은 단건 sync도 하지 않는다 (쓰기 없음)
+    if (cfg == null || !cfg.onDemandEnabled || cfg.dryRun) {
+      return false;
+    }
+    if (!userSyncQueue.offer(realm.getId(), userId, invalidate)) {
+      Log.warn("on-demand queue full, dropping realm=" + realm.getName() + " userId=" + userId);
+      return false;
+    }
+    return true;
+  }
+
+  private void drainUserSyncQueue() {
+    while (!Thread.currentThread().isInterrupted()) {
+      Map<String, Map<String, Boolean>> byRealm;
+      try {
+        byRealm = userSyncQueue.take(onDemandBatchSize, onDemandCoalesceMs);
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
         return;
       }
 
-      int nowEpoch = (int) (System.currentTimeMillis() / 1000L);
-      int changedUsers = 0;
-      int invalidatedUsers = 0;
-      int failedUsers = 0;
-
-      for (Map.Entry<String, String> e : userIdsByUsername.entrySet()) {
-        String username = e.getKey();
-        String userId = e.getValue();
-
-        LookupResult r = lookupByUsername.get(username);
-        if (r == null || !r.success || r.rawJson == null) {
-          failedUsers++;
-          continue;
-        }
-
-        JsonNode root;
+      for (Map.Entry<String, Map<String, Boolean>> e : byRealm.entrySet()) {
         try {
-          root = OM.readTree(r.rawJson);
+          syncUsers(e.getKey(), e.getValue());
         } catch (Exception ex) {
-          failedUsers++;
-          continue;
-        }
-
-        // ✅ 업데이트 TX에서 user 다시 로드
-        UserModel user = session.users().getUserById(realm, userId);
-        if (user == null) {
-          // 중간에 삭제/변경될 수 있음
-          failedUsers++;
-          continue;
-        }
-
-        Set<String> updatedKeys = new HashSet<>();
-        boolean shouldInvalidate = false;
-
-        for (Map.Entry<String, String> mapping : cfg.mapping.entrySet()) {
-          String attrKey = mapping.getKey();
-
-          // ✅ 새 키 생성 금지: 기존 attribute key가 없으면 skip
-          if (!user.getAttributes().containsKey(attrKey)) {
-            continue;
-          }
-
-          String newValue = extractString(root, mapping.getValue());
-          if (newValue == null) continue;
-
-          String currentValue = user.getFirstAttribute(attrKey);
-          if (Objects.equals(currentValue, newValue)) continue;
-
-          user.setSingleAttribute(attrKey, newValue);
-          updatedKeys.add(attrKey);
-
-          if (cfg.invalidateOnKeys.contains(attrKey)) {
-            shouldInvalidate = true;
-          }
-        }
-
-        if (updatedKeys.isEmpty()) {
-          continue;
-        }
-
-        changedUsers++;
-
-        if (shouldInvalidate) {
-          // ✅ 유저 notBefore 설정
-          session.users().setNotBeforeForUser(realm, user, nowEpoch);
-
-          // ✅ 즉시 로그아웃 (부하 크면 옵션화 추천)
-          session.sessions().removeUserSessions(realm, user);
-
-          invalidatedUsers++;
+          Log.error("on-demand sync failed realm=" + e.getKey() + " users=" + e.getValue().size(), ex);
         }
       }
-
-      Log.info("realm=" + realm.getName()
-          + " pageFirst=" + pageFirst
-          + " pageSize=" + userIdsByUsername.size()
-          + " changedUsers=" + changedUsers
-          + " invalidatedUsers=" + invalidatedUsers
-          + " failedUsers=" + failedUsers);
-    });
-  }
-
-  private void shutdownPool(ExecutorService pool) {
-    pool.shutdown(); // 정상 종료 우선
-    try {
-      if (!pool.awaitTermination(10, TimeUnit.SECONDS)) {
-        pool.shutdownNow(); // 그래도 안되면 강제
-        if (!pool.awaitTermination(5, TimeUnit.SECONDS)) {
-          Log.warn("executor did not terminate cleanly");
-        }
-      }
-    } catch (InterruptedException ie) {
-      pool.shutdownNow();
-      Thread.currentThread().interrupt();
     }
   }
 
-  private static final class PageSnapshot {
-    boolean hasMore = true;
-    String realmName;
-    List<String> usernames = List.of();
-    Map<String, String> userIdsByUsername = Map.of();
-  }
-
-  private static final class LookupResult {
-    final boolean success;
-    final String username;
-    final String rawJson;
-    final Exception error;
-
-    private LookupResult(boolean success, String username, String rawJson, Exception error) {
-      this.success = success;
-      this.username = username;
-      this.rawJson = rawJson;
-      this.error = error;
+  private void syncUsers(String realmId, Map<String, Boolean> invalidateByUserId) {
+    AtomicReference<UserInfoSyncRealmConfig> cfgRef = new AtomicReference<>();
+    KeycloakModelUtils.runJobInTransaction(sessionFactory, (KeycloakSession session) -> {
+      RealmModel realm = session.realms().getRealm(realmId);
+      if (realm != null) {
+        cfgRef.set(configCache.get(realm));
+      }
+    });
+    UserInfoSyncRealmConfig cfg = cfgRef.get();
+    if (cfg == null || !cfg.onDemandEnabled || cfg.dryRun) {
+      return;
     }
 
-    static LookupResult ok(String username, String rawJson) {
-      return new LookupResult(true, username, rawJson, null);
-    }
+    List<String> withInvalidation = new ArrayList<>();
+    List<String> withoutInvalidation = new ArrayList<>();
+    invalidateByUserId.forEach((userId, invalidate) ->
+        (invalidate ? withInvalidation : withoutInvalidation).add(userId));
 
-    static LookupResult fail(String username, Exception e) {
-      return new LookupResult(false, username, null, e);
-    }
+    UserInfoSyncRunner runner = new UserInfoSyncRunner(sessionFactory, cfg, this);
+    runner.syncUsers(realmId, withInvalidation, true);
+    runner.syncUsers(realmId, withoutInvalidation, false);
+    Log.info("on-demand sync realm=" + realmId + " users=" + invalidateByUserId.size()
+        + " queued=" + userSyncQueue.size());
   }
 
-  private static String extractString(JsonNode root, String dotPath) {
-    if (root == null || dotPath == null || dotPath.isBlank()) {
-      return null;
+  private static void shutdown(ExecutorService pool, String name) {
+    if (pool == null) {
+      return;
     }
-
-    JsonNode node = root;
-    for (String part : dotPath.split("\\.")) {
-      if (node == null || node instanceof MissingNode || node.isMissingNode() || node.isNull()) {
-        return null;
-      }
-      if (node.isArray()) {
-        if (node.isEmpty()) return null;
-        node = node.get(0);
+    pool.shutdownNow(); // 진행 중 run은 interrupt → 체크포인트 lease 만료 후 다른 노드가 이어받는다
+    try {
+      if (!pool.awaitTermination(10, TimeUnit.SECONDS)) {
+        Log.warn(name + " executor did not terminate cleanly");
       }
-      node = node.path(part);
-    }
-
-    if (node == null || node instanceof MissingNode || node.isMissingNode() || node.isNull()) {
-      return null;
-    }
-    if (node.isArray()) {
-      if (node.isEmpty()) return null;
-      node = node.get(0);
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
     }
+  }
 
-    String value = node.asText(null);
-    if (value == null || value.isBlank()) {
-      return null;
-    }
-    return value;
+  private static ThreadFactory threadFactory(String prefix) {
+    AtomicInteger seq = new AtomicInteger();
+    return r -> {
+      Thread t = new Thread(r, prefix + "-" + seq.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    };
   }
 }
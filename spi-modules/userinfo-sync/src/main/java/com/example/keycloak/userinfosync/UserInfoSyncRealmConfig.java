@@ -9,6 +9,7 @@ import java.time.format.DateTimeFormatter;
 import java.util.Collections;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.stream.Collectors;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -18,12 +19,16 @@ public final class UserInfoSyncRealmConfig {
   private static final String DEFAULT_MAPPING_JSON =
       "{\"deptId\":\"response.employees.departmentCode\"}";
 
+  // incremental 모드에서 마지막 sync 시 Knox 응답 + 반영된 매핑 값 digest를 보관하는 user attribute
+  public static final String DIGEST_ATTRIBUTE = "userinfosync.digest";
+
   public final boolean enabled;
   public final String runAt;
   public final int windowMinutes;
   public final int batchSize;
   public final String resultType;
   public final int httpTimeoutMs;
+  public final int knoxPerUserTimeoutMs;
   public final int maxConcurrency;
   public final int retryMaxAttempts;
   public final int retryBaseBackoffMs;
@@ -31,6 +36,25 @@ public final class UserInfoSyncRealmConfig {
   public final ZoneId timezone;
   public final Map<String, String> mapping;
   public final Set<String> invalidateOnKeys;
+  public final boolean incremental;
+  public final int checkpointLeaseSeconds;
+  // 체크포인트를 realm attribute에 쓰는 최소 간격. realm attribute 쓰기는 realm cache를 클러스터 전체에서 무효화한다
+  public final int checkpointIntervalSeconds;
+  public final int shards;
+  public final int shardParallelism;
+  public final int jdbcBatchSize;
+  public final int invalidationSessionsPerSecond;
+  public final int invalidationBatchSize;
+  public final boolean invalidationNotBeforeOnly;
+  public final boolean onDemandEnabled;
+  // true면 Knox 조회/추출까지만 하고 유저에는 쓰지 않는다 (diff/무효화 대상 수만 집계)
+  public final boolean dryRun;
+  public final String mappingFingerprint;
+  // mapping path를 컴파일한 결과. config 생성 시 한 번만 만든다
+  public final KnoxFieldExtractor extractor;
+  // runAt "HH:mm"을 미리 파싱. 형식이 틀리면 -1 (window 없음)
+  private final int runAtHour;
+  private final int runAtMinute;
 
   private UserInfoSyncRealmConfig(
       boolean enabled,
@@ -39,13 +63,25 @@ public final class UserInfoSyncRealmConfig {
       int batchSize,
       String resultType,
       int httpTimeoutMs,
+      int knoxPerUserTimeoutMs,
       int maxConcurrency,
       int retryMaxAttempts,
       int retryBaseBackoffMs,
       String taskKeyPrefix,
       ZoneId timezone,
       Map<String, String> mapping,
-      Set<String> invalidateOnKeys
+      Set<String> invalidateOnKeys,
+      boolean incremental,
+      int checkpointLeaseSeconds,
+      int checkpointIntervalSeconds,
+      int shards,
+      int shardParallelism,
+      int jdbcBatchSize,
+      int invalidationSessionsPerSecond,
+      int invalidationBatchSize,
+      boolean invalidationNotBeforeOnly,
+      boolean onDemandEnabled,
+      boolean dryRun
   ) {
     this.enabled = enabled;
     this.runAt = runAt;
@@ -53,6 +89,7 @@ public final class UserInfoSyncRealmConfig {
     this.batchSize = batchSize;
     this.resultType = resultType;
     this.httpTimeoutMs = httpTimeoutMs;
+    this.knoxPerUserTimeoutMs = knoxPerUserTimeoutMs;
     this.maxConcurrency = maxConcurrency;
     this.retryMaxAttempts = retryMaxAttempts;
     this.retryBaseBackoffMs = retryBaseBackoffMs;
@@ -60,10 +97,33 @@ public final class UserInfoSyncRealmConfig {
     this.timezone = timezone;
     this.mapping = mapping;
     this.invalidateOnKeys = invalidateOnKeys;
+    this.incremental = incremental;
+    this.checkpointLeaseSeconds = checkpointLeaseSeconds;
+    this.checkpointIntervalSeconds = checkpointIntervalSeconds;
+    this.shards = shards;
+    this.shardParallelism = shardParallelism;
+    this.jdbcBatchSize = jdbcBatchSize;
+    this.invalidationSessionsPerSecond = invalidationSessionsPerSecond;
+    this.invalidationBatchSize = invalidationBatchSize;
+    this.invalidationNotBeforeOnly = invalidationNotBeforeOnly;
+    this.onDemandEnabled = onDemandEnabled;
+    this.dryRun = dryRun;
+    this.mappingFingerprint = fingerprint(resultType, mapping);
+    this.extractor = new KnoxFieldExtractor(mapping);
+
+    String[] parts = runAt.split(":");
+    int hh = parts.length == 2 ? parseInt(parts[0], -1) : -1;
+    int mm = parts.length == 2 ? parseInt(parts[1], -1) : -1;
+    boolean valid = hh >= 0 && hh <= 23 && mm >= 0 && mm <= 59;
+    this.runAtHour = valid ? hh : -1;
+    this.runAtMinute = valid ? mm : -1;
   }
 
   public static UserInfoSyncRealmConfig fromRealm(RealmModel realm) {
-    Map<String, String> attrs = realm.getAttributes();
+    return fromAttributes(realm.getAttributes());
+  }
+
+  public static UserInfoSyncRealmConfig fromAttributes(Map<String, String> attrs) {
 
     boolean enabled = "true".equalsIgnoreCase(attrs.getOrDefault("userinfosync.enabled", "false"));
     String runAt = attrs.getOrDefault("userinfosync.runAt", "03:00");
@@ -71,12 +131,40 @@ public final class UserInfoSyncRealmConfig {
     int batch = parseInt(attrs.getOrDefault("userinfosync.batchSize", "500"), 500);
     String resultType = attrs.getOrDefault("userinfosync.resultType", "basic");
     int timeout = parseInt(attrs.getOrDefault("userinfosync.httpTimeoutMs", "5000"), 5000);
+    int perUserTimeout = parseInt(attrs.getOrDefault("userinfosync.knoxPerUserTimeoutMs", "20000"), 20000);
     int conc = parseInt(attrs.getOrDefault("userinfosync.maxConcurrency", "15"), 15);
     int retry = parseInt(attrs.getOrDefault("userinfosync.retry.maxAttempts", "3"), 3);
     int backoff = parseInt(attrs.getOrDefault("userinfosync.retry.baseBackoffMs", "250"), 250);
     String prefix = attrs.getOrDefault("userinfosync.taskKeyPrefix", "userinfosync");
     String mappingJson = attrs.getOrDefault("userinfosync.mappingJson", DEFAULT_MAPPING_JSON);
     String invalidateCsv = attrs.getOrDefault("userinfosync.invalidateOnKeys", "deptId");
+    boolean incremental = "true".equalsIgnoreCase(
+        attrs.getOrDefault("userinfosync.incremental.enabled", "false"));
+    int lease = parseInt(attrs.getOrDefault("userinfosync.checkpoint.leaseSeconds", "900"), 900);
+    // 0이면 페이지마다 저장
+    int checkpointInterval = parseInt(attrs.getOrDefault("userinfosync.checkpoint.intervalSeconds", "60"), 60);
+    int shards = parseInt(attrs.getOrDefault("userinfosync.shards", "1"), 1);
+    int shardParallelism = parseInt(attrs.getOrDefault("userinfosync.shardParallelism", "2"), 2);
+    int jdbcBatchSize = parseInt(attrs.getOrDefault("userinfosync.jdbcBatchSize", "100"), 100);
+    // 0 이하면 throttle 없음
+    int invalidationRate = parseInt(
+        attrs.getOrDefault("userinfosync.invalidation.sessionsPerSecond", "50"), 50);
+    int invalidationBatch = parseInt(
+        attrs.getOrDefault("userinfosync.invalidation.batchSize", "50"), 50);
+    boolean notBeforeOnly = "true".equalsIgnoreCase(
+        attrs.getOrDefault("userinfosync.invalidation.notBeforeOnly", "false"));
+    // 로그인/관리자 수정 이벤트로 단건 sync
+    boolean onDemand = !"false".equalsIgnoreCase(
+        attrs.getOrDefault("userinfosync.onDemand.enabled", "true"));
+    boolean dryRun = "true".equalsIgnoreCase(
+        attrs.getOrDefault("userinfosync.dryRun.enabled", "false"));
+
+    shards = Math.max(1, Math.min(shards, UserIdShard.MAX_SHARDS));
+    // 진행 중인 shard가 lease 만료로 보이지 않도록 lease의 1/3 안에서는 한 번 이상 쓴다
+    checkpointInterval = Math.max(0, Math.min(checkpointInterval, lease / 3));
+    shardParallelism = Math.max(1, shardParallelism);
+    jdbcBatchSize = Math.max(1, jdbcBatchSize);
+    invalidationBatch = Math.max(1, invalidationBatch);
 
     ZoneId tz = ZoneId.systemDefault();
 
@@ -91,32 +179,37 @@ public final class UserInfoSyncRealmConfig {
         batch,
         resultType,
         timeout,
+        perUserTimeout,
         conc,
         retry,
         backoff,
         prefix,
         tz,
         parseMappingJson(mappingJson),
-        parseCsv(invalidateCsv)
+        parseCsv(invalidateCsv),
+        incremental,
+        lease,
+        checkpointInterval,
+        shards,
+        shardParallelism,
+        jdbcBatchSize,
+        invalidationRate,
+        invalidationBatch,
+        notBeforeOnly,
+        onDemand,
+        dryRun
     );
   }
 
   public boolean isNowInWindow(ZonedDateTime now) {
     ZonedDateTime zoned = now.withZoneSameInstant(timezone);
 
-    String[] parts = runAt.split(":");
-    if (parts.length != 2) {
-      return false;
-    }
-
-    int hh = parseInt(parts[0], -1);
-    int mm = parseInt(parts[1], -1);
-    if (hh < 0 || hh > 23 || mm < 0 || mm > 59) {
+    if (runAtHour < 0) {
       return false;
     }
 
     // ✅ 필수 수정: 자정 교차 대응(어제/오늘/내일 중 최소 차이)
-    ZonedDateTime targetToday = zoned.withHour(hh).withMinute(mm).withSecond(0).withNano(0);
+    ZonedDateTime targetToday = runAtToday(zoned);
     ZonedDateTime targetPrev = targetToday.minusDays(1);
     ZonedDateTime targetNext = targetToday.plusDays(1);
 
@@ -128,12 +221,45 @@ public final class UserInfoSyncRealmConfig {
     return diffMin <= windowMinutes;
   }
 
+  /**
+   * now 이후 처음 열리는 window의 시작 시각(epoch ms). now가 window 안이면 그 다음 window. runAt이 틀리면
+   * Long.MAX_VALUE.
+   */
+  public long nextWindowOpensAt(ZonedDateTime now) {
+    if (runAtHour < 0) {
+      return Long.MAX_VALUE;
+    }
+    ZonedDateTime zoned = now.withZoneSameInstant(timezone);
+    ZonedDateTime targetToday = runAtToday(zoned);
+    for (int day = 0; day <= 2; day++) {
+      ZonedDateTime opensAt = targetToday.plusDays(day).minusMinutes(windowMinutes);
+      if (opensAt.isAfter(zoned)) {
+        return opensAt.toInstant().toEpochMilli();
+      }
+    }
+    return Long.MAX_VALUE;
+  }
+
+  private ZonedDateTime runAtToday(ZonedDateTime zoned) {
+    return zoned.withHour(runAtHour).withMinute(runAtMinute).withSecond(0).withNano(0);
+  }
+
   public String todayKey(ZonedDateTime now) {
     return now.withZoneSameInstant(timezone).format(DateTimeFormatter.BASIC_ISO_DATE);
   }
 
   public String buildTaskKey(String realmId, String yyyymmdd) {
-    return taskKeyPrefix + ":" + realmId + ":" + yyyymmdd;
+    // dry-run과 실제 run이 같은 날 서로의 lock을 잡지 않도록 key를 나눈다
+    return taskKeyPrefix + (dryRun ? ":dryrun:" : ":") + realmId + ":" + yyyymmdd;
+  }
+
+  /**
+   * mapping/resultType이 바뀌면 저장된 digest가 모두 무효화되도록 digest 입력에 섞는 값.
+   */
+  private static String fingerprint(String resultType, Map<String, String> mapping) {
+    StringBuilder sb = new StringBuilder(resultType);
+    new TreeMap<>(mapping).forEach((k, v) -> sb.append('\n').append(k).append('=').append(v));
+    return sb.toString();
   }
 
   private static int parseInt(String v, int fallback) {
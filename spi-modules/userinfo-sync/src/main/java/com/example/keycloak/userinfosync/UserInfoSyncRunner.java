@@ -1,237 +1,1116 @@
 package com.example.keycloak.userinfosync;
 
+import org.hibernate.Session;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.UserModel;
+import org.keycloak.models.cache.UserCache;
+import org.keycloak.models.jpa.UserAdapter;
+import org.keycloak.models.jpa.entities.RealmAttributeEntity;
+import org.keycloak.models.jpa.entities.UserAttributeEntity;
+import org.keycloak.models.jpa.entities.UserEntity;
 import org.keycloak.models.utils.KeycloakModelUtils;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.MissingNode;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.LockModeType;
+import jakarta.persistence.TypedQuery;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class UserInfoSyncRunner {
-  private static final ObjectMapper OM = new ObjectMapper();
+  private static final int PREFETCH_CHUNK = 500;
+  // dry-run 보고서에 남길 diff 예시 수
+  private static final int DRY_RUN_SAMPLES = 20;
 
   private final KeycloakSessionFactory factory;
   private final UserInfoSyncRealmConfig cfg;
+  private final KnoxClient knox;
+  // 노드 공유 pool. run마다 만들지 않고, run 단위 동시성은 cfg.maxConcurrency로 제한한다
+  private final ExecutorService knoxPool;
+  private final KnoxLookupCache knoxCache;
+  private final SyncMetrics metrics;
+  private final List<String> dryRunSamples = new ArrayList<>();
+  // 마지막으로 체크포인트를 realm에 쓴 시각 (cfg.checkpointIntervalSeconds 간격 판단용)
+  private long checkpointSavedAt;
 
-  public UserInfoSyncRunner(KeycloakSessionFactory factory, UserInfoSyncRealmConfig cfg) {
+  public UserInfoSyncRunner(
+      KeycloakSessionFactory factory,
+      UserInfoSyncRealmConfig cfg,
+      UserInfoSyncProviderFactory runtime
+  ) {
     this.factory = factory;
     this.cfg = cfg;
+    this.knox = runtime.knox();
+    this.knoxPool = runtime.knoxPool();
+    this.knoxCache = runtime.knoxCache();
+    this.metrics = runtime.metrics();
   }
 
-  public void syncRealm(String realmId) {
-    KnoxClient knox = new KnoxClient(cfg);
+  /**
+   * checkpoint.lastUserId 다음부터 realm 끝까지 동기화한다. 새 run이면 {@link SyncCheckpoint#start}로 만든
+   * 체크포인트를, 이어받는 경우 realm에 저장된 체크포인트를 넘긴다.
+   *
+   * <p>체크포인트를 저장하려는데 다른 노드가 이미 이어받았으면 이 run은 거기서 멈춘다. 그 페이지 반영도 같은 TX라
+   * 같이 rollback된다.
+   */
+  public void syncRealm(String realmId, SyncCheckpoint checkpoint) {
+    try {
+      runShard(realmId, checkpoint);
+    } catch (SyncCheckpoint.CheckpointLostException e) {
+      Log.warn("stopping sync, " + e.getMessage());
+    }
+  }
 
-    // ✅ pool은 페이지마다 만들지 말고 Runner 생명주기 동안 재사용
-    ExecutorService pool = Executors.newFixedThreadPool(cfg.maxConcurrency);
+  private void runShard(String realmId, SyncCheckpoint checkpoint) {
+    Semaphore knoxSlots = new Semaphore(Math.max(1, cfg.maxConcurrency));
+    SessionInvalidator invalidator = new SessionInvalidator(factory, cfg);
 
-    try {
-      int first = 0;
-      int max = cfg.batchSize;
-
-      while (true) {
-        final int pageFirst = first;
-        AtomicBoolean hasMore = new AtomicBoolean(true);
-
-        KeycloakModelUtils.runJobInTransaction(factory, (KeycloakSession session) -> {
-          RealmModel realm = session.realms().getRealm(realmId);
-          if (realm == null) {
-            Log.warn("realm not found: " + realmId);
-            hasMore.set(false);
-            return;
-          }
+    // 시작/이어받기 시점에 updatedAt 갱신 → 다른 노드가 lease 만료로 보지 않게
+    saveCheckpoint(realmId, checkpoint);
+
+    int max = cfg.batchSize;
+    RunProgress progress = new RunProgress(
+        countShardUsers(realmId, checkpoint.range(), checkpoint.snapshotAt), checkpoint.processedUsers);
+
+    while (true) {
+      // 1) TX-1: user identifiers만 짧게 가져오기 (keyset: id > lastUserId)
+      //    snapshotAt 이후 생성된 유저는 이번 run 대상에서 제외 (페이지 간 snapshot 고정)
+      PageSnapshot page = loadPageSnapshot(
+          realmId, checkpoint.range(), checkpoint.lastUserId, checkpoint.snapshotAt, max);
+      if (!page.hasMore) {
+        break;
+      }
+
+      // 2) TX 밖: Knox 병렬 호출 + timeout
+      long fetchStarted = System.nanoTime();
+      Map<String, LookupResult> lookupByUsername =
+          fetchKnoxInParallel(realmId, knoxSlots, page);
+      metrics.fetchPhase(fetchStarted);
+      if (Thread.currentThread().isInterrupted()) {
+        // 노드 종료 중: 반쯤 채운 페이지는 반영하지 않는다 (lease 만료 후 다른 노드가 이어받음)
+        Log.warn("sync interrupted realm=" + realmId + " " + checkpoint);
+        return;
+      }
+
+      if (cfg.dryRun) {
+        // 3') dry-run: 읽기 전용 TX에서 비교만 하고 체크포인트는 dry-run attribute에 따로 저장
+        diffInReadOnlyTransaction(realmId, checkpoint, page, lookupByUsername);
+        if (checkpointDue()) {
+          saveCheckpoint(realmId, checkpoint);
+        }
+        Log.info(progress.report(page.realmName, checkpoint));
+        continue;
+      }
+
+      // 3) TX-2: 결과 반영 + (간격이 됐으면) 체크포인트 저장 (같은 TX)
+      List<String> sessionsToRemove = new ArrayList<>();
+      applyUpdatesInTransaction(realmId, checkpoint, page, lookupByUsername, true, sessionsToRemove);
+
+      // 4) 커밋 후: 세션 제거는 batch + throttle
+      invalidator.removeSessions(realmId, sessionsToRemove);
+
+      Log.info(progress.report(page.realmName, checkpoint));
+    }
+
+    checkpoint.markDone();
+    saveCheckpoint(realmId, checkpoint);
+    Log.info("shard done realm=" + realmId + " " + checkpoint);
+    if (cfg.dryRun) {
+      Log.info("dry-run report realm=" + realmId
+          + " shard=" + checkpoint.shard + "/" + checkpoint.shards
+          + " users=" + checkpoint.processedUsers
+          + " wouldChange=" + checkpoint.changedUsers
+          + " wouldInvalidate=" + checkpoint.invalidatedUsers
+          + " affectedSessions=" + checkpoint.affectedSessions
+          + " unchanged=" + checkpoint.unchangedUsers
+          + " failed=" + checkpoint.failedUsers
+          + " keyChanges=" + checkpoint.keyChanges
+          + " samples=" + dryRunSamples);
+    }
+  }
+
+  /**
+   * 이벤트 큐에서 온 유저 몇 명만 sync한다. 체크포인트 없이 배치와 같은 TX-1 → Knox → TX-2 → 세션 제거를 한 번
+   * 돈다. service account나 이미 삭제된 유저는 TX-1에서 빠진다.
+   *
+   * <p>invalidate=false면 invalidateOnKeys가 바뀌어도 notBefore/세션 제거를 하지 않는다. 방금 로그인한 유저의
+   * 새 세션을 끊지 않기 위한 것으로, 새 claim은 다음 token refresh에서 반영된다.
+   *
+   * <p>invalidate=true는 관리자 유저 생성/수정 요청이다. 이때는 Knox 조회 캐시를 버리고 새로 조회한다 (TTL 안의
+   * 예전 값으로 관리자 재동기화를 덮지 않도록).
+   */
+  public void syncUsers(String realmId, Collection<String> userIds, boolean invalidate) {
+    if (userIds.isEmpty()) {
+      return;
+    }
+
+    PageSnapshot page = loadUsersSnapshot(realmId, userIds);
+    if (page.usernames.isEmpty()) {
+      return;
+    }
+    if (invalidate) {
+      for (String username : page.usernames) {
+        knoxCache.invalidate(realmId, username);
+      }
+    }
+
+    Map<String, LookupResult> lookupByUsername =
+        fetchKnoxInParallel(realmId, new Semaphore(Math.max(1, cfg.maxConcurrency)), page);
+    if (Thread.currentThread().isInterrupted()) {
+      return;
+    }
+
+    List<String> sessionsToRemove = new ArrayList<>();
+    applyUpdatesInTransaction(realmId, null, page, lookupByUsername, invalidate, sessionsToRemove);
+    new SessionInvalidator(factory, cfg).removeSessions(realmId, sessionsToRemove);
+  }
+
+  /**
+   * 진행률/ETA 용. shard 구간의 snapshot 시점 유저 수 (service account 제외).
+   */
+  private long countShardUsers(String realmId, UserIdShard range, long snapshotAt) {
+    long[] total = new long[1];
+    KeycloakModelUtils.runJobInTransaction(factory, (KeycloakSession session) -> {
+      EntityManager em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+      StringBuilder jpql = new StringBuilder("select count(u) from UserEntity u")
+          .append(" where u.realmId = :realmId")
+          .append(" and u.serviceAccountClientLink is null")
+          .append(" and (u.createdTimestamp is null or u.createdTimestamp <= :snapshotAt)");
+      if (range.fromInclusive != null) {
+        jpql.append(" and u.id >= :fromUserId");
+      }
+      if (range.toExclusive != null) {
+        jpql.append(" and u.id < :toUserId");
+      }
+      TypedQuery<Long> query = em.createQuery(jpql.toString(), Long.class)
+          .setParameter("realmId", realmId)
+          .setParameter("snapshotAt", snapshotAt);
+      if (range.fromInclusive != null) {
+        query.setParameter("fromUserId", range.fromInclusive);
+      }
+      if (range.toExclusive != null) {
+        query.setParameter("toUserId", range.toExclusive);
+      }
+      total[0] = query.getSingleResult();
+    });
+    return total[0];
+  }
+
+  private void saveCheckpoint(String realmId, SyncCheckpoint checkpoint) {
+    KeycloakModelUtils.runJobInTransaction(factory, (KeycloakSession session) -> {
+      RealmModel realm = session.realms().getRealm(realmId);
+      if (realm != null) {
+        SyncCheckpoint stored = lockStoredCheckpoint(session, realmId, checkpoint);
+        checkpoint.updatedAt = System.currentTimeMillis();
+        checkpoint.write(realm, stored);
+      }
+    });
+    checkpointSavedAt = System.currentTimeMillis();
+  }
+
+  /**
+   * 저장된 체크포인트를 DB에서 잠그고 다시 읽는다. realm cache가 아니라 row를 읽어야 다른 노드가 방금 쓴 값을 보고,
+   * 잠금으로 두 노드의 저장이 겹치지 않는다.
+   */
+  private static SyncCheckpoint lockStoredCheckpoint(
+      KeycloakSession session,
+      String realmId,
+      SyncCheckpoint checkpoint
+  ) {
+    EntityManager em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+    List<RealmAttributeEntity> rows = em.createQuery(
+            "select a from RealmAttributeEntity a where a.realm.id = :realmId and a.name = :name",
+            RealmAttributeEntity.class)
+        .setParameter("realmId", realmId)
+        .setParameter("name", SyncCheckpoint.attributeName(checkpoint.shard, checkpoint.dryRun))
+        .setLockMode(LockModeType.PESSIMISTIC_WRITE)
+        .getResultList();
+    return rows.isEmpty() ? null : SyncCheckpoint.parse(realmId, rows.get(0).getValue());
+  }
+
+  /**
+   * 페이지마다 realm attribute를 쓰면 페이지마다 모든 노드가 realm을 다시 읽는다. 간격 안에서는 메모리의
+   * 체크포인트만 전진시키고, 이어받는 노드는 마지막으로 저장된 지점부터 다시 돈다(같은 값은 skip돼서 결과는 같다).
+   */
+  private boolean checkpointDue() {
+    return System.currentTimeMillis() - checkpointSavedAt >= cfg.checkpointIntervalSeconds * 1000L;
+  }
+
+  /**
+   * TX-1: page의 유저 식별자만 가져온다 (UserModel 오래 들고있지 않기).
+   *
+   * <p>offset 페이징(searchForUserStream first/max)은 깊은 페이지일수록 DB가 앞 row를 모두 건너뛰어야 하고,
+   * run 도중 생성/삭제된 유저 때문에 페이지가 밀려 누락/중복이 생긴다. USER_ENTITY PK(id) 기준 keyset으로
+   * (id, username)만 조회해서 페이지 비용을 깊이와 무관하게 유지한다.
+   */
+  private PageSnapshot loadPageSnapshot(
+      String realmId,
+      UserIdShard range,
+      String afterUserId,
+      long snapshotAt,
+      int max
+  ) {
+    final PageSnapshot snapshot = new PageSnapshot();
+
+    KeycloakModelUtils.runJobInTransaction(factory, (KeycloakSession session) -> {
+      RealmModel realm = session.realms().getRealm(realmId);
+      if (realm == null) {
+        Log.warn("realm not found: " + realmId);
+        snapshot.hasMore = false;
+        return;
+      }
+
+      List<Object[]> rows = queryUserKeysetPage(
+          session, realmId, range, afterUserId, snapshotAt, max, cfg.incremental);
+      if (rows.isEmpty()) {
+        snapshot.hasMore = false;
+        return;
+      }
+
+      fillSnapshot(snapshot, realm, rows);
+      loadCurrentValues(session, realmId, snapshot);
+      // username이 전부 비어있는 페이지라도 다음 페이지는 계속 진행
+      snapshot.lastUserId = (String) rows.get(rows.size() - 1)[0];
+      snapshot.hasMore = true;
+    });
+
+    return snapshot;
+  }
+
+  /**
+   * TX-1 (단건 sync): 주어진 user id들의 식별자만 가져온다.
+   */
+  private PageSnapshot loadUsersSnapshot(String realmId, Collection<String> userIds) {
+    final PageSnapshot snapshot = new PageSnapshot();
+    snapshot.hasMore = false;
+
+    KeycloakModelUtils.runJobInTransaction(factory, (KeycloakSession session) -> {
+      RealmModel realm = session.realms().getRealm(realmId);
+      if (realm == null) {
+        return;
+      }
 
-          List<UserModel> users = session.users()
-              .searchForUserStream(realm, Collections.emptyMap(), pageFirst, max)
-              .toList();
+      EntityManager em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+      StringBuilder jpql = new StringBuilder();
+      if (cfg.incremental) {
+        jpql.append("select u.id, u.username, a.value from UserEntity u")
+            .append(" left join UserAttributeEntity a on a.user = u and a.name = :digestAttribute");
+      } else {
+        jpql.append("select u.id, u.username from UserEntity u");
+      }
+      jpql.append(" where u.realmId = :realmId")
+          .append(" and u.serviceAccountClientLink is null")
+          .append(" and u.id in :ids");
+
+      TypedQuery<Object[]> query = em.createQuery(jpql.toString(), Object[].class)
+          .setParameter("realmId", realmId)
+          .setParameter("ids", userIds);
+      if (cfg.incremental) {
+        query.setParameter("digestAttribute", UserInfoSyncRealmConfig.DIGEST_ATTRIBUTE);
+      }
+
+      fillSnapshot(snapshot, realm, query.getResultList());
+      loadCurrentValues(session, realmId, snapshot);
+    });
+
+    return snapshot;
+  }
+
+  /**
+   * incremental: digest를 가진 유저의 현재 매핑 attribute 값도 TX-1에서 읽어 둔다. sync 밖에서 값이 바뀌거나
+   * 지워졌으면 digest가 달라져서 Knox 응답이 같아도 다시 반영된다.
+   */
+  private void loadCurrentValues(KeycloakSession session, String realmId, PageSnapshot snapshot) {
+    if (!cfg.incremental || snapshot.storedDigestByUsername.isEmpty()) {
+      return;
+    }
+    List<String> ids = new ArrayList<>();
+    for (String username : snapshot.storedDigestByUsername.keySet()) {
+      ids.add(snapshot.userIdsByUsername.get(username));
+    }
+    EntityManager em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+    snapshot.currentValuesByUserId = loadMappedAttributes(em, realmId, ids);
+  }
+
+  private static void fillSnapshot(PageSnapshot snapshot, RealmModel realm, List<Object[]> rows) {
+    // username -> userId (Keycloak 내부 UUID)
+    // (LinkedHashMap: id 순서 유지)
+    Map<String, String> map = new LinkedHashMap<>();
+    Map<String, String> digests = new HashMap<>();
+    for (Object[] row : rows) {
+      String userId = (String) row[0];
+      // Knox가 username 기반 조회라고 했으니 username 기준으로 snapshot 생성
+      String username = (String) row[1];
+      if (username == null || username.isBlank()) continue;
+      map.put(username, userId);
+      if (row.length > 2 && row[2] != null) {
+        digests.put(username, (String) row[2]);
+      }
+    }
+
+    snapshot.realmName = realm.getName();
+    snapshot.userIdsByUsername = map;
+    snapshot.storedDigestByUsername = digests;
+    snapshot.usernames = new ArrayList<>(map.keySet());
+  }
+
+  private static List<Object[]> queryUserKeysetPage(
+      KeycloakSession session,
+      String realmId,
+      UserIdShard range,
+      String afterUserId,
+      long snapshotAt,
+      int max,
+      boolean withDigest
+  ) {
+    EntityManager em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+
+    // service account 는 searchForUserStream 기본 동작과 동일하게 제외
+    StringBuilder jpql = new StringBuilder();
+    if (withDigest) {
+      // incremental: 지난 sync digest도 같은 쿼리로 가져온다 (유저 로딩 없이 변경 여부 판단)
+      jpql.append("select u.id, u.username, a.value from UserEntity u")
+          .append(" left join UserAttributeEntity a on a.user = u and a.name = :digestAttribute");
+    } else {
+      jpql.append("select u.id, u.username from UserEntity u");
+    }
+    jpql.append(" where u.realmId = :realmId")
+        .append(" and u.serviceAccountClientLink is null")
+        .append(" and (u.createdTimestamp is null or u.createdTimestamp <= :snapshotAt)");
+    // shard 구간 [fromInclusive, toExclusive) 안에서 keyset 진행
+    String fromUserId = afterUserId == null ? range.fromInclusive : null;
+    if (afterUserId != null) {
+      jpql.append(" and u.id > :afterUserId");
+    } else if (fromUserId != null) {
+      jpql.append(" and u.id >= :fromUserId");
+    }
+    if (range.toExclusive != null) {
+      jpql.append(" and u.id < :toUserId");
+    }
+    jpql.append(" order by u.id");
+
+    TypedQuery<Object[]> query = em.createQuery(jpql.toString(), Object[].class)
+        .setParameter("realmId", realmId)
+        .setParameter("snapshotAt", snapshotAt)
+        .setMaxResults(max);
+    if (afterUserId != null) {
+      query.setParameter("afterUserId", afterUserId);
+    } else if (fromUserId != null) {
+      query.setParameter("fromUserId", fromUserId);
+    }
+    if (range.toExclusive != null) {
+      query.setParameter("toUserId", range.toExclusive);
+    }
+    if (withDigest) {
+      query.setParameter("digestAttribute", UserInfoSyncRealmConfig.DIGEST_ATTRIBUTE);
+    }
+    return query.getResultList();
+  }
+
+  /**
+   * TX 밖: Knox 병렬 호출. timeout/hang 방지.
+   *
+   * <p>응답 본문은 String으로 만들지 않고 worker thread에서 바로 매핑 값만 뽑는다. 페이지 동안 들고 있는 건
+   * 유저당 매핑 값 몇 개뿐이다. incremental 모드에서는 같은 stream에서 digest도 계산해서, 현재 매핑 값과 합친
+   * 결과가 지난 sync 값과 같으면 unchanged로 돌려 TX-2에서 유저 로딩/쓰기를 건너뛴다.
+   */
+  private Map<String, LookupResult> fetchKnoxInParallel(
+      String realmId,
+      Semaphore knoxSlots,
+      PageSnapshot page
+  ) {
+    Map<String, Future<LookupResult>> futures = new LinkedHashMap<>();
+    // slot은 task가 시작됐으면 task가, 시작 전에 취소됐으면 수집 쪽이 정확히 한 번 돌려준다
+    Map<String, AtomicBoolean> startedByUsername = new HashMap<>();
+    for (String username : page.usernames) {
+      String storedDigest = page.storedDigestByUsername.get(username);
+      Map<String, List<String>> current =
+          page.currentValuesByUserId.getOrDefault(page.userIdsByUsername.get(username), Map.of());
+
+      // TTL 안에 이미 조회한 유저(재시도/이어받기/단건 sync)는 Knox를 다시 부르지 않는다
+      KnoxLookupCache.CacheEntry cached = knoxCache.get(realmId, cfg, username);
+      if (cached != null && (!cfg.incremental || cached.digest != null)) {
+        futures.put(username, CompletableFuture.completedFuture(
+            toLookup(username, storedDigest, current, cached.values(cfg.extractor), cached.digest)));
+        continue;
+      }
 
-          if (users.isEmpty()) {
-            hasMore.set(false);
-            return;
+      try {
+        // 공유 pool을 한 run이 다 차지하지 않도록 submit 전에 slot을 잡는다
+        knoxSlots.acquire();
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+      AtomicBoolean started = new AtomicBoolean();
+      try {
+        futures.put(username, knoxPool.submit(() -> {
+          if (!started.compareAndSet(false, true)) {
+            return LookupResult.fail(username, new CancellationException("cancelled before start"));
+          }
+          try {
+            return knox.fetchByUserId(
+                cfg,
+                username,
+                body -> readLookup(realmId, username, storedDigest, current, body)
+            );
+          } catch (Exception e) {
+            return LookupResult.fail(username, e);
+          } finally {
+            knoxSlots.release();
           }
+        }));
+        startedByUsername.put(username, started);
+      } catch (RejectedExecutionException e) {
+        knoxSlots.release();
+        futures.put(username, CompletableFuture.completedFuture(LookupResult.fail(username, e)));
+      }
+    }
+
+    // 결과 수집 (timeout 적용)
+    Map<String, LookupResult> results = new LinkedHashMap<>();
+    long perUserTimeoutMs = Math.max(1_000L, cfg.knoxPerUserTimeoutMs);
+    for (Map.Entry<String, Future<LookupResult>> entry : futures.entrySet()) {
+      String username = entry.getKey();
+      Future<LookupResult> f = entry.getValue();
+
+      try {
+        LookupResult r = f.get(perUserTimeoutMs, TimeUnit.MILLISECONDS);
+        results.put(username, r);
+      } catch (TimeoutException te) {
+        f.cancel(true);
+        // pool queue에서 기다리다 취소된 task는 finally가 돌지 않으므로 여기서 slot을 돌려준다
+        AtomicBoolean started = startedByUsername.get(username);
+        if (started != null && started.compareAndSet(false, true)) {
+          knoxSlots.release();
+        }
+        results.put(username, LookupResult.fail(username, te));
+      } catch (Exception e) {
+        results.put(username, LookupResult.fail(username, e));
+      }
+    }
+
+    return results;
+  }
+
+  private LookupResult readLookup(
+      String realmId,
+      String username,
+      String storedDigest,
+      Map<String, List<String>> current,
+      InputStream body
+  ) throws IOException {
+    if (!cfg.incremental) {
+      Map<String, String> values = cfg.extractor.extract(body);
+      knoxCache.put(realmId, cfg, username, values, null);
+      return LookupResult.ok(username, values, null);
+    }
+
+    MessageDigest md = newDigest(cfg.mappingFingerprint);
+    DigestInputStream in = new DigestInputStream(body, md);
+    Map<String, String> values = cfg.extractor.extract(in);
+    // parser는 root 값까지만 읽으므로 나머지도 digest에 넣는다
+    in.transferTo(OutputStream.nullOutputStream());
+
+    String digest = encodeDigest(md);
+    knoxCache.put(realmId, cfg, username, values, digest);
+    return toLookup(username, storedDigest, current, values, digest);
+  }
+
+  /**
+   * 저장된 digest는 응답 digest + 반영 후 매핑 값이다. 지금 값으로 다시 계산해서 같으면 unchanged.
+   */
+  private LookupResult toLookup(
+      String username,
+      String storedDigest,
+      Map<String, List<String>> current,
+      Map<String, String> values,
+      String digest
+  ) {
+    if (digest != null && storedDigest != null && storedDigest.equals(attributeDigest(digest, current))) {
+      return LookupResult.unchanged(username);
+    }
+    return LookupResult.ok(username, values, digest);
+  }
+
+  /**
+   * TX-2: 페이지 유저를 한 번에 prefetch 한 뒤 attribute diff만 entity에 반영한다. 페이지 반영과 체크포인트
+   * 저장을 한 TX로 묶는다.
+   *
+   * <p>{@code UserModel.setSingleAttribute}는 attribute마다 기존 row 삭제 + 새 row insert를 하고, 유저마다
+   * getUserById로 다시 읽는다. 여기서는 (1) 페이지 유저+attribute를 쿼리 한 번으로 올리고 (2) 기존 row의 value만
+   * 바꿔서 UPDATE로 만들고 (3) commit 시 한 번의 flush에서 JDBC batch로 내보낸다.
+   *
+   * <p>invalidate 대상은 notBefore만 여기서 저장하고, 세션 제거 대상 user id는 sessionsToRemove에 모아서
+   * 커밋 후 {@link SessionInvalidator}가 처리한다.
+   */
+  private void applyUpdatesInTransaction(
+      String realmId,
+      SyncCheckpoint checkpoint,
+      PageSnapshot page,
+      Map<String, LookupResult> lookupByUsername,
+      boolean invalidate,
+      List<String> sessionsToRemove
+  ) {
+    String afterUserId = checkpoint == null ? null : checkpoint.lastUserId;
+    boolean writeCheckpoint = checkpoint != null && checkpointDue();
+    Map<String, String> userIdsByUsername = page.userIdsByUsername;
+    int[] counts = new int[4];
+    long txStarted = System.nanoTime();
+
+    KeycloakModelUtils.runJobInTransaction(factory, (KeycloakSession session) -> {
+      RealmModel realm = session.realms().getRealm(realmId);
+      if (realm == null) {
+        Log.warn("realm not found: " + realmId);
+        return;
+      }
 
-          // Knox 호출 병렬 수행
-          List<Future<LookupResult>> futures = new ArrayList<>(users.size());
-          for (UserModel u : users) {
-            final String userId = u.getUsername(); // Knox query user_id=<username>
-            futures.add(pool.submit(() -> {
-              try {
-                String rawJson = knox.fetchRawJsonByUserId(
-                    userId,
-                    cfg.retryMaxAttempts,
-                    cfg.retryBaseBackoffMs
-                );
-                return LookupResult.ok(userId, rawJson);
-              } catch (Exception e) {
-                return LookupResult.fail(userId, e);
-              }
-            }));
+      EntityManager em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+      em.unwrap(Session.class).setJdbcBatchSize(cfg.jdbcBatchSize);
+      UserCache userCache = session.getProvider(UserCache.class);
+
+      int nowEpoch = (int) (System.currentTimeMillis() / 1000L);
+      int changedUsers = 0;
+      int unchangedUsers = 0;
+      int invalidatedUsers = 0;
+      int failedUsers = 0;
+
+      // ✅ 반영 대상 유저만 한 번에 로드 (user + attributes)
+      List<String> idsToLoad = new ArrayList<>();
+      for (Map.Entry<String, String> e : userIdsByUsername.entrySet()) {
+        LookupResult r = lookupByUsername.get(e.getKey());
+        if (r != null && r.success && !r.unchanged) {
+          idsToLoad.add(e.getValue());
+        }
+      }
+      Map<String, UserEntity> entities = prefetchUsers(em, realmId, idsToLoad);
+
+      for (Map.Entry<String, String> e : userIdsByUsername.entrySet()) {
+        String username = e.getKey();
+        String userId = e.getValue();
+
+        LookupResult r = lookupByUsername.get(username);
+        if (r != null && r.unchanged) {
+          unchangedUsers++;
+          continue;
+        }
+        if (r == null || !r.success || r.values == null) {
+          failedUsers++;
+          continue;
+        }
+        Map<String, String> values = r.values;
+        // 저장할 digest: 응답 digest + 이번 반영 뒤의 매핑 값 (TX-1에서 읽은 값 기준)
+        String digest = r.digest == null ? null : attributeDigest(
+            r.digest, appliedValues(page.currentValuesByUserId.getOrDefault(userId, Map.of()), values));
+
+        UserEntity entity = entities.get(userId);
+        if (entity == null) {
+          // 중간에 삭제/변경될 수 있음
+          failedUsers++;
+          continue;
+        }
+
+        // federation(LDAP 등) 유저는 attribute가 provider 쪽에 있을 수 있으니 UserModel 경로로 반영
+        boolean shouldInvalidate;
+        boolean changed;
+        UserModel user;
+        if (entity.getFederationLink() != null) {
+          user = session.users().getUserById(realm, userId);
+          if (user == null) {
+            failedUsers++;
+            continue;
           }
+          Set<String> updatedKeys = applyToUserModel(user, values, digest);
+          changed = !updatedKeys.isEmpty();
+          shouldInvalidate = updatedKeys.stream().anyMatch(cfg.invalidateOnKeys::contains);
+        } else {
+          user = new UserAdapter(session, realm, em, entity);
+          Set<String> updatedKeys = applyToEntity(em, entity, values, digest);
+          changed = !updatedKeys.isEmpty();
+          shouldInvalidate = updatedKeys.stream().anyMatch(cfg.invalidateOnKeys::contains);
+          if ((changed || digest != null) && userCache != null) {
+            // entity를 직접 바꿨으니 user cache는 직접 무효화
+            userCache.evict(realm, user);
+          }
+        }
+
+        if (!changed) {
+          continue;
+        }
+
+        changedUsers++;
+
+        if (shouldInvalidate && invalidate) {
+          // ✅ 유저 notBefore 설정 (체크포인트와 같은 TX)
+          session.users().setNotBeforeForUser(realm, user, nowEpoch);
+
+          // ✅ 세션 제거는 커밋 후 batch로
+          sessionsToRemove.add(userId);
+
+          invalidatedUsers++;
+        }
+      }
+
+      counts[0] = changedUsers;
+      counts[1] = unchangedUsers;
+      counts[2] = invalidatedUsers;
+      counts[3] = failedUsers;
+
+      if (checkpoint != null) {
+        checkpoint.advance(
+            page.lastUserId,
+            userIdsByUsername.size(),
+            changedUsers,
+            unchangedUsers,
+            invalidatedUsers,
+            failedUsers
+        );
+        if (writeCheckpoint) {
+          checkpoint.write(realm, lockStoredCheckpoint(session, realmId, checkpoint));
+        }
+      }
+
+      Log.info("realm=" + realm.getName()
+          + " afterUserId=" + afterUserId
+          + " pageSize=" + userIdsByUsername.size()
+          + " changedUsers=" + changedUsers
+          + " unchangedUsers=" + unchangedUsers
+          + " invalidatedUsers=" + invalidatedUsers
+          + " failedUsers=" + failedUsers);
+    });
+
+    if (writeCheckpoint) {
+      checkpointSavedAt = System.currentTimeMillis();
+    }
+
+    // 커밋된 페이지만 집계
+    metrics.txPhase(txStarted);
+    metrics.users(userIdsByUsername.size(), counts[0], counts[1], counts[2], counts[3]);
+  }
+
+  /**
+   * dry-run용 TX-2 대체. 유저 entity를 올리지 않고 mapping key attribute row만 읽어서
+   * TX-2와 같은 규칙(새 key 생성 금지, 값이 같으면 skip)으로 비교한다. TX는 rollback-only라 flush/lock이 없다.
+   *
+   * <p>무효화 대상이면 현재 세션 수를 센다. federation 유저는 로컬에 import된 attribute 기준으로 비교한다.
+   */
+  private void diffInReadOnlyTransaction(
+      String realmId,
+      SyncCheckpoint checkpoint,
+      PageSnapshot page,
+      Map<String, LookupResult> lookupByUsername
+  ) {
+    Map<String, String> userIdsByUsername = page.userIdsByUsername;
+    long diffStarted = System.nanoTime();
+
+    KeycloakModelUtils.runJobInTransaction(factory, (KeycloakSession session) -> {
+      session.getTransactionManager().setRollbackOnly();
+      RealmModel realm = session.realms().getRealm(realmId);
+      if (realm == null) {
+        Log.warn("realm not found: " + realmId);
+        return;
+      }
+      EntityManager em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+
+      List<String> idsToLoad = new ArrayList<>();
+      for (Map.Entry<String, String> e : userIdsByUsername.entrySet()) {
+        LookupResult r = lookupByUsername.get(e.getKey());
+        if (r != null && r.success && !r.unchanged) {
+          idsToLoad.add(e.getValue());
+        }
+      }
+      Map<String, Map<String, List<String>>> currentByUserId = loadMappedAttributes(em, realmId, idsToLoad);
+
+      int changedUsers = 0;
+      int unchangedUsers = 0;
+      int invalidatedUsers = 0;
+      int failedUsers = 0;
+      long sessions = 0;
+      Map<String, Integer> changesByKey = new HashMap<>();
+
+      for (Map.Entry<String, String> e : userIdsByUsername.entrySet()) {
+        String username = e.getKey();
+        String userId = e.getValue();
+
+        LookupResult r = lookupByUsername.get(username);
+        if (r != null && r.unchanged) {
+          unchangedUsers++;
+          continue;
+        }
+        if (r == null || !r.success || r.values == null) {
+          failedUsers++;
+          continue;
+        }
 
-          int nowEpoch = (int) (System.currentTimeMillis() / 1000L);
-          int changedUsers = 0;
-          int invalidatedUsers = 0;
-          int failedUsers = 0;
-
-          for (int i = 0; i < users.size(); i++) {
-            UserModel user = users.get(i);
-
-            LookupResult r;
-            try {
-              r = futures.get(i).get();
-            } catch (Exception e) {
-              failedUsers++;
-              continue;
-            }
-
-            if (!r.success) {
-              failedUsers++;
-              continue;
-            }
-
-            JsonNode root;
-            try {
-              root = OM.readTree(r.rawJson);
-            } catch (Exception e) {
-              failedUsers++;
-              continue;
-            }
-
-            Set<String> updatedKeys = new HashSet<>();
-            boolean shouldInvalidate = false;
-
-            for (Map.Entry<String, String> entry : cfg.mapping.entrySet()) {
-              String attrKey = entry.getKey();
-
-              // ✅ 새 키 생성 금지: 기존 attribute key가 없으면 skip
-              if (!user.getAttributes().containsKey(attrKey)) {
-                continue;
-              }
-
-              String newValue = extractString(root, entry.getValue());
-              if (newValue == null) {
-                continue;
-              }
-
-              String currentValue = user.getFirstAttribute(attrKey);
-              if (Objects.equals(currentValue, newValue)) {
-                continue;
-              }
-
-              user.setSingleAttribute(attrKey, newValue);
-              updatedKeys.add(attrKey);
-
-              if (cfg.invalidateOnKeys.contains(attrKey)) {
-                shouldInvalidate = true;
-              }
-            }
-
-            if (updatedKeys.isEmpty()) {
-              continue;
-            }
-
-            changedUsers++;
-
-            if (shouldInvalidate) {
-              // ✅ 유저 notBefore 설정 (provider API)
-              session.users().setNotBeforeForUser(realm, user, nowEpoch);
-
-              // ✅ 즉시 로그아웃
-              session.sessions().removeUserSessions(realm, user);
-
-              invalidatedUsers++;
-            }
+        Map<String, List<String>> current = currentByUserId.getOrDefault(userId, Map.of());
+        Set<String> changedKeys = new HashSet<>();
+        for (String attrKey : cfg.mapping.keySet()) {
+          List<String> rows = current.get(attrKey);
+          String newValue = r.values.get(attrKey);
+          if (rows == null || newValue == null) continue;
+          if (rows.size() == 1 && Objects.equals(rows.get(0), newValue)) continue;
+
+          changedKeys.add(attrKey);
+          changesByKey.merge(attrKey, 1, Integer::sum);
+          if (dryRunSamples.size() < DRY_RUN_SAMPLES) {
+            dryRunSamples.add(username + " " + attrKey + ": " + rows + " -> " + newValue);
           }
+        }
 
-          Log.info("realm=" + realm.getName()
-              + " pageFirst=" + pageFirst
-              + " pageSize=" + users.size()
-              + " changedUsers=" + changedUsers
-              + " invalidatedUsers=" + invalidatedUsers
-              + " failedUsers=" + failedUsers);
-        });
+        if (changedKeys.isEmpty()) {
+          continue;
+        }
+        changedUsers++;
 
-        if (!hasMore.get()) {
-          break;
+        if (changedKeys.stream().anyMatch(cfg.invalidateOnKeys::contains)) {
+          invalidatedUsers++;
+          UserModel user = session.users().getUserById(realm, userId);
+          if (user != null) {
+            sessions += session.sessions().getUserSessionsStream(realm, user).count();
+          }
         }
-        first += max;
       }
-    } finally {
-      pool.shutdownNow();
-      try {
-        pool.awaitTermination(5, TimeUnit.SECONDS);
-      } catch (InterruptedException ignored) {
-        Thread.currentThread().interrupt();
+
+      checkpoint.advance(
+          page.lastUserId,
+          userIdsByUsername.size(),
+          changedUsers,
+          unchangedUsers,
+          invalidatedUsers,
+          failedUsers
+      );
+      checkpoint.addDryRunDiff(changesByKey, sessions);
+      metrics.dryRun(changedUsers, invalidatedUsers, sessions);
+
+      Log.info("dry-run realm=" + realm.getName()
+          + " pageSize=" + userIdsByUsername.size()
+          + " wouldChange=" + changedUsers
+          + " wouldInvalidate=" + invalidatedUsers
+          + " sessions=" + sessions
+          + " unchangedUsers=" + unchangedUsers
+          + " failedUsers=" + failedUsers);
+    });
+
+    metrics.diffPhase(diffStarted);
+  }
+
+  /**
+   * userId → (mapping key → 현재 값들). mapping key에 해당하는 attribute row만 읽는다.
+   *
+   * <p>255자를 넘는 값은 VALUE가 null이고 LONG_VALUE에 들어 있으므로 컬럼 projection이 아니라 entity를 읽어
+   * {@code getValue()}로 비교한다 (TX-2의 setSingleValue와 같은 값).
+   */
+  private Map<String, Map<String, List<String>>> loadMappedAttributes(
+      EntityManager em,
+      String realmId,
+      List<String> userIds
+  ) {
+    Map<String, Map<String, List<String>>> byUserId = new HashMap<>();
+    if (cfg.mapping.isEmpty()) {
+      return byUserId;
+    }
+    for (int from = 0; from < userIds.size(); from += PREFETCH_CHUNK) {
+      List<String> chunk = userIds.subList(from, Math.min(from + PREFETCH_CHUNK, userIds.size()));
+      List<Object[]> rows = em.createQuery(
+              "select a.user.id, a.name, a from UserAttributeEntity a"
+                  + " where a.user.realmId = :realmId and a.user.id in :ids and a.name in :names",
+              Object[].class)
+          .setParameter("realmId", realmId)
+          .setParameter("ids", chunk)
+          .setParameter("names", cfg.mapping.keySet())
+          .getResultList();
+      for (Object[] row : rows) {
+        byUserId.computeIfAbsent((String) row[0], k -> new HashMap<>())
+            .computeIfAbsent((String) row[1], k -> new ArrayList<>(1))
+            .add(((UserAttributeEntity) row[2]).getValue());
+      }
+    }
+    return byUserId;
+  }
+
+  /**
+   * 페이지 유저를 attributes까지 fetch join 으로 한 번에 올린다. IN 절은 DB 제한을 고려해 잘라서 보낸다.
+   */
+  private static Map<String, UserEntity> prefetchUsers(
+      EntityManager em,
+      String realmId,
+      List<String> userIds
+  ) {
+    Map<String, UserEntity> byId = new HashMap<>();
+    for (int from = 0; from < userIds.size(); from += PREFETCH_CHUNK) {
+      List<String> chunk = userIds.subList(from, Math.min(from + PREFETCH_CHUNK, userIds.size()));
+      em.createQuery(
+              "select distinct u from UserEntity u left join fetch u.attributes"
+                  + " where u.realmId = :realmId and u.id in :ids", UserEntity.class)
+          .setParameter("realmId", realmId)
+          .setParameter("ids", chunk)
+          .getResultList()
+          .forEach(u -> byId.put(u.getId(), u));
+    }
+    return byId;
+  }
+
+  /**
+   * 기존 attribute row의 value만 바꾼다 (UPDATE). 같은 이름 row가 여러 개면 첫 row만 남긴다.
+   */
+  private Set<String> applyToEntity(
+      EntityManager em,
+      UserEntity entity,
+      Map<String, String> values,
+      String digest
+  ) {
+    Map<String, List<UserAttributeEntity>> rowsByName = new HashMap<>();
+    for (UserAttributeEntity attr : entity.getAttributes()) {
+      rowsByName.computeIfAbsent(attr.getName(), k -> new ArrayList<>(1)).add(attr);
+    }
+
+    Set<String> updatedKeys = new HashSet<>();
+    for (Map.Entry<String, String> mapping : cfg.mapping.entrySet()) {
+      String attrKey = mapping.getKey();
+
+      // ✅ 새 키 생성 금지: 기존 attribute key가 없으면 skip
+      List<UserAttributeEntity> rows = rowsByName.get(attrKey);
+      if (rows == null) {
+        continue;
       }
+
+      String newValue = values.get(attrKey);
+      if (newValue == null) continue;
+
+      if (rows.size() == 1 && Objects.equals(rows.get(0).getValue(), newValue)) continue;
+
+      setSingleValue(entity, rows, newValue);
+      updatedKeys.add(attrKey);
+    }
+
+    // 파싱/반영이 끝난 뒤에만 digest 갱신 (실패 시 다음 run에서 다시 비교)
+    if (digest != null) {
+      List<UserAttributeEntity> rows = rowsByName.get(UserInfoSyncRealmConfig.DIGEST_ATTRIBUTE);
+      if (rows != null) {
+        setSingleValue(entity, rows, digest);
+      } else {
+        UserAttributeEntity attr = new UserAttributeEntity();
+        attr.setId(KeycloakModelUtils.generateId());
+        attr.setName(UserInfoSyncRealmConfig.DIGEST_ATTRIBUTE);
+        attr.setValue(digest);
+        attr.setUser(entity);
+        em.persist(attr);
+        entity.getAttributes().add(attr);
+      }
+    }
+
+    return updatedKeys;
+  }
+
+  private static void setSingleValue(UserEntity entity, List<UserAttributeEntity> rows, String value) {
+    rows.get(0).setValue(value);
+    for (int i = 1; i < rows.size(); i++) {
+      // orphanRemoval → DELETE
+      entity.getAttributes().remove(rows.get(i));
+    }
+  }
+
+  private Set<String> applyToUserModel(UserModel user, Map<String, String> values, String digest) {
+    Set<String> updatedKeys = new HashSet<>();
+
+    for (Map.Entry<String, String> mapping : cfg.mapping.entrySet()) {
+      String attrKey = mapping.getKey();
+
+      // ✅ 새 키 생성 금지: 기존 attribute key가 없으면 skip
+      if (!user.getAttributes().containsKey(attrKey)) {
+        continue;
+      }
+
+      String newValue = values.get(attrKey);
+      if (newValue == null) continue;
+
+      String currentValue = user.getFirstAttribute(attrKey);
+      if (Objects.equals(currentValue, newValue)) continue;
+
+      user.setSingleAttribute(attrKey, newValue);
+      updatedKeys.add(attrKey);
+    }
+
+    if (digest != null) {
+      user.setSingleAttribute(UserInfoSyncRealmConfig.DIGEST_ATTRIBUTE, digest);
+    }
+
+    return updatedKeys;
+  }
+
+  /**
+   * run 진행률/처리 속도/ETA 로그. 이어받은 run이면 체크포인트의 processed부터 센다.
+   */
+  private static final class RunProgress {
+    final long totalUsers;
+    final long startProcessed;
+    final long startedAt = System.currentTimeMillis();
+
+    RunProgress(long totalUsers, long startProcessed) {
+      this.totalUsers = totalUsers;
+      this.startProcessed = startProcessed;
+    }
+
+    String report(String realmName, SyncCheckpoint checkpoint) {
+      long processed = checkpoint.processedUsers;
+      long elapsedMs = Math.max(1, System.currentTimeMillis() - startedAt);
+      double usersPerSec = (processed - startProcessed) * 1000.0 / elapsedMs;
+      long remaining = Math.max(0, totalUsers - processed);
+      String eta = usersPerSec > 0
+          ? Duration.ofSeconds((long) (remaining / usersPerSec)).toString()
+          : "?";
+      long percent = totalUsers > 0 ? Math.min(100, processed * 100 / totalUsers) : 100;
+      return "progress realm=" + realmName
+          + " shard=" + checkpoint.shard + "/" + checkpoint.shards
+          + " processed=" + processed + "/" + totalUsers + " (" + percent + "%)"
+          + " usersPerSec=" + String.format("%.1f", usersPerSec)
+          + " eta=" + eta;
     }
   }
 
+  private static final class PageSnapshot {
+    boolean hasMore = true;
+    String realmName;
+    String lastUserId;
+    List<String> usernames = List.of();
+    Map<String, String> userIdsByUsername = Map.of();
+    Map<String, String> storedDigestByUsername = Map.of();
+    // incremental: userId → (mapping key → 현재 값들), digest가 있는 유저만
+    Map<String, Map<String, List<String>>> currentValuesByUserId = Map.of();
+  }
+
   private static final class LookupResult {
     final boolean success;
-    final String userId;
-    final String rawJson;
+    final boolean unchanged;
+    final String username;
+    // 매핑 key → Knox 값 (응답 본문은 들고 있지 않는다)
+    final Map<String, String> values;
+    final String digest;
     final Exception error;
 
-    private LookupResult(boolean success, String userId, String rawJson, Exception error) {
+    private LookupResult(
+        boolean success,
+        boolean unchanged,
+        String username,
+        Map<String, String> values,
+        String digest,
+        Exception error
+    ) {
       this.success = success;
-      this.userId = userId;
-      this.rawJson = rawJson;
+      this.unchanged = unchanged;
+      this.username = username;
+      this.values = values;
+      this.digest = digest;
       this.error = error;
     }
 
-    static LookupResult ok(String userId, String rawJson) {
-      return new LookupResult(true, userId, rawJson, null);
+    static LookupResult ok(String username, Map<String, String> values, String digest) {
+      return new LookupResult(true, false, username, values, digest, null);
     }
 
-    static LookupResult fail(String userId, Exception e) {
-      return new LookupResult(false, userId, null, e);
+    static LookupResult unchanged(String username) {
+      return new LookupResult(true, true, username, null, null, null);
     }
-  }
 
-  private static String extractString(JsonNode root, String dotPath) {
-    if (root == null || dotPath == null || dotPath.isBlank()) {
-      return null;
+    static LookupResult fail(String username, Exception e) {
+      return new LookupResult(false, false, username, null, null, e);
     }
+  }
 
-    JsonNode node = root;
-    for (String part : dotPath.split("\\.")) {
-      if (node == null || node instanceof MissingNode || node.isMissingNode() || node.isNull()) {
-        return null;
-      }
-      if (node.isArray()) {
-        if (node.isEmpty()) return null;
-        node = node.get(0);
-      }
-      node = node.path(part);
+  /**
+   * SHA-256(mapping fingerprint + 0x00 + 응답 본문 bytes). 본문은 DigestInputStream으로 흘려 넣는다.
+   */
+  static MessageDigest newDigest(String fingerprint) {
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-256");
+      md.update(fingerprint.getBytes(StandardCharsets.UTF_8));
+      md.update((byte) 0);
+      return md;
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 not available", e);
     }
+  }
 
-    if (node == null || node instanceof MissingNode || node.isMissingNode() || node.isNull()) {
-      return null;
-    }
-    if (node.isArray()) {
-      if (node.isEmpty()) return null;
-      node = node.get(0);
+  /**
+   * TX-2 반영 규칙대로 계산한 반영 후 값. 없는 key는 만들지 않고, 새 값이 없으면 기존 값을 그대로 둔다.
+   */
+  private Map<String, List<String>> appliedValues(Map<String, List<String>> current, Map<String, String> values) {
+    Map<String, List<String>> applied = new HashMap<>();
+    for (String attrKey : cfg.mapping.keySet()) {
+      List<String> rows = current.get(attrKey);
+      if (rows == null) continue;
+      String newValue = values.get(attrKey);
+      applied.put(attrKey, newValue != null ? List.of(newValue) : rows);
     }
+    return applied;
+  }
 
-    String value = node.asText(null);
-    if (value == null || value.isBlank()) {
-      return null;
+  /**
+   * SHA-256(응답 digest + 매핑 key별 값). key는 정렬하고, 없는 key와 빈 값을 구분한다.
+   */
+  private String attributeDigest(String responseDigest, Map<String, List<String>> mappedValues) {
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-256");
+      md.update(responseDigest.getBytes(StandardCharsets.UTF_8));
+      for (String attrKey : new TreeSet<>(cfg.mapping.keySet())) {
+        md.update((byte) 0);
+        md.update(attrKey.getBytes(StandardCharsets.UTF_8));
+        List<String> rows = mappedValues.get(attrKey);
+        if (rows == null) {
+          md.update((byte) 1);
+          continue;
+        }
+        List<String> sorted = new ArrayList<>(rows);
+        sorted.sort(Comparator.nullsFirst(Comparator.naturalOrder()));
+        for (String v : sorted) {
+          md.update((byte) 2);
+          if (v != null) {
+            md.update(v.getBytes(StandardCharsets.UTF_8));
+          }
+        }
+      }
+      return encodeDigest(md);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 not available", e);
     }
-    return value;
+  }
+
+  /**
+   * 앞 16바이트를 base64url로. attribute 한 칸에 들어가는 크기.
+   */
+  static String encodeDigest(MessageDigest md) {
+    byte[] hash = Arrays.copyOf(md.digest(), 16);
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(hash);
   }
 }
@@ -3,66 +3,232 @@ package com.example.keycloak.userinfosync;
 import org.keycloak.cluster.ClusterProvider;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
 import org.keycloak.timer.ScheduledTask;
 
-import java.time.ZoneId;
 import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
 
 public class UserInfoSyncScheduledTask implements ScheduledTask {
+  private static final int RUN_TTL_SECONDS = 26 * 60 * 60;
+
+  private final UserInfoSyncProviderFactory syncFactory;
   private final KeycloakSessionFactory factory;
 
-  public UserInfoSyncScheduledTask(KeycloakSessionFactory factory) {
+  public UserInfoSyncScheduledTask(UserInfoSyncProviderFactory syncFactory, KeycloakSessionFactory factory) {
+    this.syncFactory = syncFactory;
     this.factory = factory;
   }
 
   @Override
   public void run(KeycloakSession session) {
-    // 기본은 서버 timezone. realm별 timezone이 있으면 cfg에서 변환해서 쓰는 게 안전
-    ZonedDateTime serverNow = ZonedDateTime.now();
+    // window/dateKey 판정은 cfg.timezone 기준으로 변환해서 한다
+    ZonedDateTime now = ZonedDateTime.now();
+    long nowMs = now.toInstant().toEpochMilli();
+
+    RealmConfigCache configCache = syncFactory.configCache();
 
     session.realms().getRealmsStream().forEach(realm -> {
-      UserInfoSyncRealmConfig cfg = UserInfoSyncRealmConfig.fromRealm(realm);
-      if (!cfg.enabled) return;
-
-      // (권장) cfg에 timezone이 있다면 그 timezone 기준으로 window 판정
-      ZonedDateTime now = serverNow;
-      if (cfg.zoneId != null && !cfg.zoneId.isBlank()) { // cfg에 zoneId 추가 권장
-        try {
-          now = serverNow.withZoneSameInstant(ZoneId.of(cfg.zoneId));
-        } catch (Exception ignored) {
-          // 잘못된 zoneId면 서버 시간으로 fallback
-        }
+      // realm 하나의 config/체크포인트 오류가 뒤 realm들의 tick을 막지 않게 한다
+      try {
+        pollRealm(realm, configCache, now, nowMs);
+      } catch (RuntimeException e) {
+        Log.error("tick failed realm=" + realm.getName(), e);
       }
+    });
+  }
 
-      if (!cfg.isNowInWindow(now)) return;
+  private void pollRealm(RealmModel realm, RealmConfigCache configCache, ZonedDateTime now, long nowMs) {
+    UserInfoSyncRealmConfig cfg = configCache.get(realm);
+    if (cfg == null || !cfg.enabled) return;
 
-      String dateKey = cfg.todayKey(now);
-      String taskKey = cfg.buildTaskKey(realm.getId(), dateKey);
+    // 오늘 run이 끝났거나 아직 window 전이면 다음 window까지 체크포인트도 읽지 않는다
+    if (configCache.isSkipped(realm.getId(), nowMs)) return;
 
-      ClusterProvider cluster = session.getProvider(ClusterProvider.class);
-      int ttlSeconds = 26 * 60 * 60;
+    String dateKey = cfg.todayKey(now);
+    long leaseMs = cfg.checkpointLeaseSeconds * 1000L;
 
-      Runnable job = () -> {
-        Log.info("START realm=" + realm.getName() + " taskKey=" + taskKey);
-        try {
-          new UserInfoSyncRunner(factory, cfg).syncRealm(realm.getId());
-          Log.info("DONE realm=" + realm.getName() + " taskKey=" + taskKey);
-        } catch (Exception e) {
-          Log.error("FAILED realm=" + realm.getName() + " taskKey=" + taskKey, e);
-        }
-      };
+    // 노드마다 시작 shard를 다르게 해서 같은 shard lock을 두고 경쟁하는 걸 줄인다
+    int offset = ThreadLocalRandom.current().nextInt(cfg.shards);
+    boolean startedToday = false;
+    boolean allDoneToday = true;
+    List<ShardClaim> claims = new ArrayList<>();
+
+    for (int i = 0; i < cfg.shards; i++) {
+      int shard = (offset + i) % cfg.shards;
+      SyncCheckpoint cp = SyncCheckpoint.read(realm, shard, cfg.dryRun);
+      boolean today = cp != null && dateKey.equals(cp.dateKey);
+      startedToday |= today;
+      allDoneToday &= today && cp.isDone();
+
+      // 오늘 shard가 끝났거나, 다른 노드가 lease 안에서 진행 중
+      if (today && !cp.isStale(nowMs, leaseMs)) continue;
+
+      claims.add(new ShardClaim(shard, today ? cp : null));
+    }
 
-      // ✅ ClusterProvider가 없으면(단일노드/환경차이) 그냥 실행하도록 방어
-      if (cluster == null) {
-        Log.warn("ClusterProvider not available. Running locally. realm=" + realm.getName());
-        job.run();
+    if (allDoneToday) {
+      configCache.skipUntil(realm.getId(), cfg.nextWindowOpensAt(now));
+      return;
+    }
+
+    if (claims.isEmpty()) return;
+
+    // 오늘 run이 이미 시작됐으면 window 밖이어도 아직 아무도 안 잡은 shard를 가져간다
+    if (!startedToday && !cfg.isNowInWindow(now)) {
+      configCache.skipUntil(realm.getId(), cfg.nextWindowOpensAt(now));
+      return;
+    }
+
+    runShards(realm.getId(), realm.getName(), cfg, dateKey, claims);
+  }
+
+  /**
+   * shard claim을 factory의 shard pool에 넘기고 바로 돌아온다 (timer thread를 막지 않는다). realm당 이 노드에서
+   * 동시에 도는 shard는 shardParallelism 개까지고, 나머지는 다음 poll에서 다시 본다. 다른 노드가 이미 잡은
+   * shard는 executeIfNotExecuted가 바로 반환한다.
+   */
+  private void runShards(
+      String realmId,
+      String realmName,
+      UserInfoSyncRealmConfig cfg,
+      String dateKey,
+      List<ShardClaim> claims
+  ) {
+    int slots = cfg.shardParallelism - syncFactory.inFlightShards(realmId);
+    for (ShardClaim claim : claims) {
+      if (slots <= 0) {
         return;
       }
+      boolean submitted = syncFactory.submitShard(realmId, claim.shard, () -> {
+        // timer session은 이미 닫혔으니 shard thread에서 session을 새로 연다 (TX는 runner가 페이지 단위로)
+        try (KeycloakSession session = factory.create()) {
+          ClusterProvider cluster = session.getProvider(ClusterProvider.class);
+          claimShard(cluster, realmId, realmName, cfg, dateKey, claim);
+        } catch (Exception e) {
+          Log.error("shard claim failed realm=" + realmName + " shard=" + claim.shard, e);
+        }
+      });
+      if (submitted) {
+        slots--;
+      }
+    }
+  }
+
+  private void claimShard(
+      ClusterProvider cluster,
+      String realmId,
+      String realmName,
+      UserInfoSyncRealmConfig cfg,
+      String dateKey,
+      ShardClaim claim
+  ) {
+    String shardKey = cfg.buildTaskKey(realmId, dateKey) + ":shard:" + claim.shard;
+    long leaseMs = cfg.checkpointLeaseSeconds * 1000L;
+    SyncCheckpoint seen = claim.staleCheckpoint;
+
+    if (seen != null) {
+      // ✅ lease 만료: 마지막으로 커밋된 페이지 다음부터 이어받는다.
+      // 같은 체크포인트 위치는 한 노드만 이어받도록 runId + lastUserId로 key를 만든다.
+      String resumeKey = shardKey + ":resume:" + seen.runId + ":"
+          + (seen.lastUserId == null ? "start" : seen.lastUserId);
+      executeOnce(cluster, realmName, resumeKey, cfg.checkpointLeaseSeconds, () -> {
+        SyncCheckpoint latest = currentCheckpoint(realmId, claim.shard, cfg.dryRun, c ->
+            seen.runId.equals(c.runId)
+                && Objects.equals(seen.lastUserId, c.lastUserId)
+                && c.isStale(System.currentTimeMillis(), leaseMs));
+        if (latest == null) return;
 
-      cluster.executeIfNotExecuted(taskKey, ttlSeconds, () -> {
-        job.run();
-        return null;
+        // 새 owner로 이어받는다. 원래 노드가 아직 살아 있으면 다음 체크포인트 저장에서 멈춘다
+        latest.takeOver();
+        Log.info("RESUME realm=" + realmName + " taskKey=" + resumeKey + " " + latest);
+        runSync(realmId, realmName, resumeKey, cfg, latest);
       });
+      return;
+    }
+
+    executeOnce(cluster, realmName, shardKey, RUN_TTL_SECONDS, () -> {
+      // executeIfNotExecuted는 완료 시 key를 지우므로, 다시 잡혀도 오늘 shard 체크포인트가 있으면 skip
+      SyncCheckpoint existing =
+          currentCheckpoint(realmId, claim.shard, cfg.dryRun, c -> dateKey.equals(c.dateKey));
+      if (existing != null) return;
+
+      SyncCheckpoint fresh =
+          SyncCheckpoint.start(dateKey, claim.shard, cfg.shards, System.currentTimeMillis(), cfg.dryRun);
+      runSync(realmId, realmName, shardKey, cfg, fresh);
+    });
+  }
+
+  private void runSync(
+      String realmId,
+      String realmName,
+      String taskKey,
+      UserInfoSyncRealmConfig cfg,
+      SyncCheckpoint checkpoint
+  ) {
+    Log.info("START realm=" + realmName + " taskKey=" + taskKey
+        + " runId=" + checkpoint.runId + " range=" + checkpoint.range());
+    try {
+      new UserInfoSyncRunner(factory, cfg, syncFactory).syncRealm(realmId, checkpoint);
+      Log.info("DONE realm=" + realmName + " taskKey=" + taskKey);
+    } catch (Exception e) {
+      Log.error("FAILED realm=" + realmName + " taskKey=" + taskKey, e);
+    }
+  }
+
+  /**
+   * 새 TX에서 shard 체크포인트를 다시 읽는다. 조건을 만족하지 않으면 null.
+   */
+  private SyncCheckpoint currentCheckpoint(
+      String realmId,
+      int shard,
+      boolean dryRun,
+      Predicate<SyncCheckpoint> condition
+  ) {
+    AtomicReference<SyncCheckpoint> ref = new AtomicReference<>();
+    KeycloakModelUtils.runJobInTransaction(factory, (KeycloakSession s) -> {
+      RealmModel realm = s.realms().getRealm(realmId);
+      SyncCheckpoint cp = realm == null ? null : SyncCheckpoint.read(realm, shard, dryRun);
+      if (cp != null && condition.test(cp)) {
+        ref.set(cp);
+      }
     });
+    return ref.get();
+  }
+
+  private static void executeOnce(
+      ClusterProvider cluster,
+      String realmName,
+      String taskKey,
+      int ttlSeconds,
+      Runnable job
+  ) {
+    // ✅ ClusterProvider가 없으면(단일노드/환경차이) 그냥 실행하도록 방어
+    if (cluster == null) {
+      Log.warn("ClusterProvider not available. Running locally. realm=" + realmName);
+      job.run();
+      return;
+    }
+
+    cluster.executeIfNotExecuted(taskKey, ttlSeconds, () -> {
+      job.run();
+      return null;
+    });
+  }
+
+  private static final class ShardClaim {
+    final int shard;
+    final SyncCheckpoint staleCheckpoint;
+
+    ShardClaim(int shard, SyncCheckpoint staleCheckpoint) {
+      this.shard = shard;
+      this.staleCheckpoint = staleCheckpoint;
+    }
   }
 }
@@ -0,0 +1,31 @@
+package com.example.keycloak.userinfosync;
+
+import org.keycloak.provider.Provider;
+import org.keycloak.provider.ProviderFactory;
+import org.keycloak.provider.Spi;
+
+public class UserInfoSyncSpi implements Spi {
+
+  public static final String NAME = "userinfo-sync";
+
+  @Override
+  public boolean isInternal() {
+    return false;
+  }
+
+  @Override
+  public String getName() {
+    return NAME;
+  }
+
+  @Override
+  public Class<? extends Provider> getProviderClass() {
+    return UserInfoSyncProvider.class;
+  }
+
+  @Override
+  @SuppressWarnings("rawtypes")
+  public Class<? extends ProviderFactory> getProviderFactoryClass() {
+    return UserInfoSyncProviderFactory.class;
+  }
+}
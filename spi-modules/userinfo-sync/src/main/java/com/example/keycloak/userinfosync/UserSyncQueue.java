@@ -0,0 +1,76 @@
+package com.example.keycloak.userinfosync;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 단건 sync 요청 큐. 크기 제한이 있고, 이미 대기 중인 유저는 다시 넣지 않는다.
+ *
+ * <p>worker는 첫 요청이 오면 coalesceMs 만큼 더 모은 뒤 realm별로 묶어서 한 번에 처리한다 (로그인 몰림 등 burst를
+ * 한 번의 TX-1/TX-2로). 꺼낸 순간 대기 목록에서 빠지므로, 처리 중에 같은 유저 요청이 오면 다음 batch로 간다.
+ *
+ * <p>요청마다 세션 무효화 허용 여부가 있고, 대기 중 합쳐질 때는 하나라도 허용이면 허용이다.
+ */
+final class UserSyncQueue {
+  private final BlockingQueue<String> queue;
+  // key → 세션 무효화 허용 여부
+  private final Map<String, Boolean> queued = new ConcurrentHashMap<>();
+
+  UserSyncQueue(int capacity) {
+    this.queue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+  }
+
+  /**
+   * 큐가 가득 차서 버렸으면 false. 이미 대기 중이면 합쳐진 것으로 보고 true.
+   */
+  boolean offer(String realmId, String userId, boolean invalidate) {
+    String key = realmId + '\n' + userId;
+    // 대기 중이면 OR로 합치고, take가 방금 꺼내 가서 없으면 새 요청으로 다시 넣는다 (key 단위로 원자적)
+    boolean[] added = new boolean[1];
+    queued.compute(key, (k, prev) -> {
+      if (prev == null) {
+        added[0] = true;
+        return invalidate;
+      }
+      return prev || invalidate;
+    });
+    if (!added[0]) {
+      return true;
+    }
+    if (!queue.offer(key)) {
+      queued.remove(key);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * 요청이 올 때까지 기다렸다가 coalesceMs 동안 더 모아서 realmId → (userId → 무효화 허용)으로 돌려준다.
+   */
+  Map<String, Map<String, Boolean>> take(int maxUsers, long coalesceMs) throws InterruptedException {
+    List<String> keys = new ArrayList<>();
+    keys.add(queue.take());
+    if (coalesceMs > 0) {
+      Thread.sleep(coalesceMs);
+    }
+    queue.drainTo(keys, Math.max(0, maxUsers - 1));
+
+    Map<String, Map<String, Boolean>> byRealm = new LinkedHashMap<>();
+    for (String key : keys) {
+      boolean invalidate = Boolean.TRUE.equals(queued.remove(key));
+      int sep = key.indexOf('\n');
+      byRealm.computeIfAbsent(key.substring(0, sep), k -> new LinkedHashMap<>())
+          .put(key.substring(sep + 1), invalidate);
+    }
+    return byRealm;
+  }
+
+  int size() {
+    return queue.size();
+  }
+}